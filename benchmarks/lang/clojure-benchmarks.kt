@@ -0,0 +1,138 @@
+package org.intellij.clojure.lang
+
+import com.intellij.lang.LanguageParserDefinitions
+import com.intellij.lang.LightPsiParser
+import com.intellij.lang.PsiBuilderFactory
+import com.intellij.lexer.FlexAdapter
+import com.intellij.lexer.Lexer
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.psi.PsiFileFactory
+import com.intellij.testFramework.LightProjectDescriptor
+import com.intellij.testFramework.fixtures.IdeaProjectTestFixture
+import com.intellij.testFramework.fixtures.IdeaTestFixtureFactory
+import com.intellij.testFramework.runInEdtAndWait
+import org.intellij.clojure.ClojureConstants
+import org.intellij.clojure.parser.ClojureLexer
+import org.intellij.clojure.parser._ClojureLexer
+import org.intellij.clojure.psi.CFile
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Run with `./gradlew jmh`, the `gc` profiler reports allocations per file (`gc.alloc.rate.norm`).
+ *
+ * @author gregsh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ClojureLexerBenchmark {
+  @Param("/clojure/core.clj", "/cljs/core.cljs")
+  @JvmField var path: String = ""
+
+  private lateinit var text: CharSequence
+
+  @Setup
+  fun setUp() {
+    text = loadSource(path)
+  }
+
+  @Benchmark
+  fun flexLexer(bh: Blackhole) = lex(FlexAdapter(_ClojureLexer(languageOf(path))), bh)
+
+  @Benchmark
+  fun clojureLexer(bh: Blackhole) = lex(ClojureLexer(languageOf(path)), bh)
+
+  private fun lex(lexer: Lexer, bh: Blackhole) {
+    lexer.start(text)
+    while (lexer.tokenType != null) {
+      bh.consume(lexer.tokenType)
+      lexer.advance()
+    }
+  }
+}
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ClojureParserBenchmark : ClojureFixtureBenchmark() {
+
+  @Benchmark
+  fun parseTree(bh: Blackhole) = ReadAction.compute<Unit, RuntimeException> {
+    val parserDefinition = LanguageParserDefinitions.INSTANCE.forLanguage(languageOf(path))
+    val builder = PsiBuilderFactory.getInstance().createBuilder(parserDefinition, parserDefinition.createLexer(project), text)
+    bh.consume(parserDefinition.createParser(project).parse(parserDefinition.fileNodeType, builder))
+  }
+
+  @Benchmark
+  fun parseLight(bh: Blackhole) = ReadAction.compute<Unit, RuntimeException> {
+    val parserDefinition = LanguageParserDefinitions.INSTANCE.forLanguage(languageOf(path))
+    val builder = PsiBuilderFactory.getInstance().createBuilder(parserDefinition, parserDefinition.createLexer(project), text)
+    (parserDefinition.createParser(project) as LightPsiParser).parseLight(parserDefinition.fileNodeType, builder)
+    bh.consume(builder.lightTree)
+  }
+}
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ClojureRolesBenchmark : ClojureFixtureBenchmark() {
+  private lateinit var file: CFile
+
+  /** a freshly parsed file without roles, so that only role assignment is measured */
+  @Setup(Level.Invocation)
+  fun parseFile() {
+    file = ReadAction.compute<CFile, RuntimeException> {
+      val psiFile = PsiFileFactory.getInstance(project).createFileFromText(
+          path.substringAfterLast('/'), languageOf(path), text) as CFile
+      psiFile.node.lastChildNode
+      psiFile
+    }
+  }
+
+  @Benchmark
+  fun assignRoles(bh: Blackhole) = ReadAction.compute<Unit, RuntimeException> {
+    bh.consume(file.defs().size())
+  }
+}
+
+abstract class ClojureFixtureBenchmark {
+  @Param("/clojure/core.clj", "/cljs/core.cljs")
+  @JvmField var path: String = ""
+
+  protected lateinit var text: CharSequence
+  private lateinit var fixture: IdeaProjectTestFixture
+  protected val project get() = fixture.project
+
+  @Setup(Level.Trial)
+  fun setUpFixture() {
+    text = loadSource(path)
+    fixture = IdeaTestFixtureFactory.getFixtureFactory()
+        .createLightFixtureBuilder(LightProjectDescriptor.EMPTY_PROJECT_DESCRIPTOR).fixture
+    runInEdtAndWait { fixture.setUp() }
+  }
+
+  @TearDown(Level.Trial)
+  fun tearDownFixture() {
+    runInEdtAndWait { fixture.tearDown() }
+  }
+}
+
+private fun languageOf(path: String) =
+    if (path.endsWith(ClojureConstants.CLJS)) ClojureScriptLanguage else ClojureLanguage
+
+private fun loadSource(path: String): CharSequence {
+  val stream = ClojureLexerBenchmark::class.java.getResourceAsStream(path) ?: throw AssertionError("$path not found")
+  return FileUtil.loadTextAndClose(stream.reader(Charsets.UTF_8))
+}
@@ -8,6 +8,7 @@ plugins {
   id("idea")
   id("java")
   id("org.jetbrains.kotlin.jvm") version "1.4.10"
+  id("me.champeau.jmh") version "0.6.6"
 }
 
 version = properties("pluginVersion").toString()
@@ -45,6 +46,15 @@ changelog {
   unreleasedTerm.set("Unreleased")
 }
 
+jmh {
+  jmhVersion.set(properties("jmhVersion"))
+  profilers.add("gc")
+  resultFormat.set("JSON")
+  duplicateClassesStrategy.set(DuplicatesStrategy.EXCLUDE)
+  // the same sandbox and idea.* properties as the light test fixtures
+  jvmArgsAppend.set(provider { tasks.test.get().allJvmArgs })
+}
+
 val artifactsPath = properties("artifactsPath").toString()
 
 val buildClojureKitJar = tasks.create<Jar>("buildClojureKitJar") {
@@ -95,6 +105,15 @@ tasks {
     test {
       java.srcDirs("tests")
     }
+    named("jmh") {
+      java.srcDirs("benchmarks")
+      compileClasspath += test.get().output + test.get().compileClasspath
+      runtimeClasspath += test.get().output + test.get().runtimeClasspath
+    }
+  }
+
+  named("jmh") {
+    dependsOn("prepareTestingSandbox")
   }
 
   buildSearchableOptions {
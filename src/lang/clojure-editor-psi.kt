@@ -35,6 +35,7 @@ import com.intellij.codeInsight.hints.HintInfo
 import com.intellij.codeInsight.hints.InlayInfo
 import com.intellij.codeInsight.hints.InlayParameterHintsProvider
 import com.intellij.codeInsight.hints.Option
+import com.intellij.codeInsight.lookup.LookupElement
 import com.intellij.codeInsight.lookup.LookupElementBuilder
 import com.intellij.codeInsight.navigation.BackgroundUpdaterTask
 import com.intellij.icons.AllIcons
@@ -138,6 +139,7 @@ class ClojureAnnotator : Annotator {
         Role.BND -> ClojureColors.LET_BINDING
         Role.FIELD -> ClojureColors.TYPE_FIELD
         else -> {
+          resolveTopLevelForm(element)
           val resolved = element.reference.resolve()
           val target = resolved.asCTarget?.key
           when {
@@ -181,6 +183,7 @@ class ClojureRainbowVisitor : RainbowVisitor() {
   override fun clone(): HighlightVisitor = ClojureRainbowVisitor()
   override fun visit(element: PsiElement) {
     if (element !is CSymbol) return
+    resolveTopLevelForm(element)
     val resolved = element.reference.resolve() ?: return
     val target = resolved.asCTarget?.key ?: return
     val attrs = when (target.type) {
@@ -258,22 +261,27 @@ class ClojureCompletionContributor : CompletionContributor() {
                 .withTypeText(file.name, true)
                 .bold())
           }
-          originalFile.cljTraverser().traverse().filter(CKeyword::class).filter { it != thisForm }.forEach { o ->
-            consumer(o.name, o.namespace, originalFile.virtualFile)
+          originalFile.keywords.forEach { fqn ->
+            val idx = fqn.indexOf('/')
+            consumer(fqn.substring(idx + 1), if (idx > 0) fqn.substring(0, idx) else "", originalFile.virtualFile)
           }
-          FileBasedIndex.getInstance().run {
+          val typed = qualifiedResult.prefixMatcher.prefix.let { if (it.startsWith(":")) it.trimStart(':') else "" }
+          // other files' keywords are offered once something is typed
+          if (typed.isNotEmpty()) FileBasedIndex.getInstance().run {
             val scope = ClojureDefinitionService.getClojureSearchScope(project)
-            processAllKeys(KEYWORD_FQN_INDEX, { fqn ->
-              val idx = fqn.indexOf('/')
-              val name = fqn.substring(idx + 1)
-              val ns = if (idx > 0) fqn.substring(0, idx) else ""
-              getFilesWithKey(KEYWORD_FQN_INDEX, mutableSetOf(fqn), { file ->
+            for (key in prefixIndexKeys(typed, aliases)) {
+              if (qualifiedResult.isStopped) break
+              processValues(KEYWORD_PREFIX_INDEX, key, null, { file, fqns ->
+                ProgressManager.checkCanceled()
                 if (acceptFile(file)) {
-                  consumer(name, ns, file)
+                  fqns.forEach { fqn ->
+                    val idx = fqn.indexOf('/')
+                    consumer(fqn.substring(idx + 1), if (idx > 0) fqn.substring(0, idx) else "", file)
+                  }
                 }
                 true
               }, scope)
-            }, project)
+            }
           }
         }
         if (thisForm !is CKeyword && ref != null && bindingsVec == null) {
@@ -314,26 +322,39 @@ class ClojureCompletionContributor : CompletionContributor() {
             }
           })
           if (stop && !showAll) return
-          if (showAll) {
+          // other namespaces' defs are offered once something is typed
+          val typed = qualifiedResult.prefixMatcher.prefix
+          if (showAll && typed.isNotEmpty()) {
             FileBasedIndex.getInstance().run {
               val scope = ClojureDefinitionService.getClojureSearchScope(project)
-              processAllKeys(DEF_FQN_INDEX, { fqn ->
-                val idx = fqn.indexOf('/')
-                val ns = if (idx > 0) fqn.substring(0, idx) else ""
-                val name = fqn.substring(idx + 1)
-                val s = name.withNamespace(aliases[ns] ?: ns)
-                if (!qualifiedResult.prefixMatcher.prefixMatches(fqn) &&
-                    !qualifiedResult.prefixMatcher.prefixMatches(s)) return@processAllKeys true
-                getFilesWithKey(DEF_FQN_INDEX, mutableSetOf(fqn), { file ->
-                  if (acceptFile(file)) {
-                    qualifiedResult.addElement(LookupElementBuilder.create(s)
+              val visited = HashSet<Pair<String, VirtualFile>>()
+              val batch = ArrayList<LookupElement>()
+              for (key in prefixIndexKeys(typed, aliases)) {
+                if (qualifiedResult.isStopped) break
+                processValues(DEF_PREFIX_INDEX, key, null, { file, fqns ->
+                  ProgressManager.checkCanceled()
+                  if (!acceptFile(file)) return@processValues true
+                  for (fqn in fqns) {
+                    val idx = fqn.indexOf('/')
+                    val ns = if (idx > 0) fqn.substring(0, idx) else ""
+                    val name = fqn.substring(idx + 1)
+                    val s = name.withNamespace(aliases[ns] ?: ns)
+                    if (!qualifiedResult.prefixMatcher.prefixMatches(fqn) &&
+                        !qualifiedResult.prefixMatcher.prefixMatches(s)) continue
+                    if (!visited.add(fqn to file)) continue
+                    batch.add(LookupElementBuilder.create(s)
                         .withLookupString(fqn)
                         .withIcon(ClojureIcons.DEFN)
                         .withTypeText(file.name, true))
                   }
+                  if (batch.size >= COMPLETION_BATCH_SIZE) {
+                    qualifiedResult.addAllElements(batch)
+                    batch.clear()
+                  }
                   true
                 }, scope)
-              }, project)
+              }
+              qualifiedResult.addAllElements(batch)
             }
           }
         }
@@ -344,6 +365,12 @@ class ClojureCompletionContributor : CompletionContributor() {
     })
   }
 
+  /** non-empty [typed] text starts a word of a name or a namespace, or starts an alias looked up by its namespace */
+  private fun prefixIndexKeys(typed: String, aliases: Map<String, String>): Collection<String> {
+    val key = prefixKey(typed)
+    return aliases.entries.filter { prefixKey(it.value).startsWith(key) }.mapTo(hashSetOf(key)) { prefixKey(it.key) }
+  }
+
   private fun completeNamespaces(project: Project, result: CompletionResultSet) {
     FileBasedIndex.getInstance().run {
       processAllKeys(NS_INDEX, { ns ->
@@ -705,6 +732,7 @@ class ClojureRenamePsiElementProcessor : RenamePsiElementProcessor() {
 }
 
 private val MORE_OFFSET_KEY = Key.create<Int>("MORE_OFFSET_KEY")
+private const val COMPLETION_BATCH_SIZE = 100
 private fun doFindReferences(element: PsiElement, scope: SearchScope): Array<MutableCollection<PsiReference>?> {
   val symKey = element.asCTarget?.key
   val result = ReferencesSearch.search(element, scope).findAll()
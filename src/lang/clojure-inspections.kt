@@ -56,6 +56,7 @@ class ClojureResolveInspection : LocalInspectionTool() {
 
     return object : ClojureVisitor() {
       override fun visitSymbol(o: CSymbol) {
+        resolveTopLevelForm(o)
         val reference = o.reference
         val multiResolve = (reference as PsiPolyVariantReference).multiResolve(false)
         if (o.getUserData(RESOLVE_SKIPPED) != null) return
@@ -63,7 +63,8 @@ class CToken(tokenType: ClojureTokenType, text: CharSequence) : LeafPsiElement(t
 interface CFile : PsiFile {
   val namespace: String
 
-  fun defs(dialect: Dialect = Dialect.CLJ): JBIterable<CList>
+  /** all defs if [dialect] is null, otherwise defs outside of reader conditionals and in [dialect] branches */
+  fun defs(dialect: Dialect? = null): JBIterable<CList>
 }
 
 interface CCodeFragment : CFile, PsiCodeFragment {
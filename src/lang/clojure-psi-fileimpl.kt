@@ -19,14 +19,27 @@ package org.intellij.clojure.psi.impl
 
 import com.intellij.extapi.psi.PsiFileBase
 import com.intellij.lang.Language
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.openapi.roots.ProjectRootManager
+import com.intellij.openapi.util.Key
 import com.intellij.openapi.util.TextRange
 import com.intellij.openapi.util.text.StringUtil
 import com.intellij.openapi.vfs.VirtualFileWithId
 import com.intellij.psi.*
 import com.intellij.psi.impl.source.DummyHolder
+import com.intellij.psi.impl.source.PsiFileImpl
+import com.intellij.psi.impl.source.tree.FileElement
+import com.intellij.psi.impl.source.tree.TreeElement
 import com.intellij.psi.scope.PsiScopeProcessor
 import com.intellij.psi.stubs.StubTreeLoader
+import com.intellij.psi.util.CachedValueProvider
+import com.intellij.psi.util.CachedValuesManager
 import com.intellij.util.SmartList
+import com.intellij.util.containers.ContainerUtil
 import com.intellij.util.containers.JBIterable
 import com.intellij.util.containers.JBTreeTraverser
 import com.intellij.util.indexing.FileBasedIndex
@@ -40,8 +53,14 @@ import org.intellij.clojure.psi.stubs.*
 import org.intellij.clojure.util.*
 import java.lang.ref.SoftReference
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
 
 private data class ResolveTo(val key: SymKey)
+private const val IMPORT_RESOLVE_CACHE_LIMIT = 64
+private const val STATE_LOCK_WAIT_MS = 10L
 private val ALL: Set<String> = setOf("* all *")
 val PRIVATE_META = "#private"
 val TYPE_META = "#typeHint"
@@ -61,10 +80,19 @@ open class CFileImpl(viewProvider: FileViewProvider, language: Language) :
     get() = fileStubRef?.get().let { stub0 ->
       when {
         virtualFile !is VirtualFileWithId -> null
-        stub0 != null || treeElement != null || isBuildingStubs() -> stub0
+        stub0 != null || isBuildingStubs() -> stub0
+        treeElement != null && !isUnmodifiedLibraryFile -> stub0
         else -> fileStubForced
       }
     }
+  /** library files are resolved from the indexed stubs even if the AST is loaded, e.g. after navigation */
+  private val isUnmodifiedLibraryFile: Boolean
+    get() = isLibraryFile && !FileDocumentManager.getInstance().isFileModified(virtualFile)
+  private val isLibraryFile: Boolean
+    get() = CachedValuesManager.getCachedValue(this) {
+      CachedValueProvider.Result.create(ProjectFileIndex.getInstance(project).isInLibrary(virtualFile),
+          ProjectRootManager.getInstance(project))
+    }
   internal val fileStubForced: CFileStub
     get() = fileStubRef?.get() ?: run {
       val stub = if (virtualFile !is VirtualFileWithId) buildStubTree(this)
@@ -79,61 +107,157 @@ open class CFileImpl(viewProvider: FileViewProvider, language: Language) :
       return fileStub?.namespace ?: state.namespace
     }
 
-  internal fun checkState() { state.namespace }
+  override fun defs(dialect: Dialect?): JBIterable<CList> {
+    return state.definitions(dialect).jbIt()
+  }
+
+  /** the reader conditional branch dialect at [place] looked up by offset, null for a place in another file */
+  internal fun dialectAt(place: PsiElement): Dialect? =
+      if (place.containingFile !== this) null
+      else state.dialectRanges.dialectAt(place.textRange.startOffset) ?: Dialect.CLJ
 
-  override fun defs(dialect: Dialect): JBIterable<CList> {
-    return state.definitions.jbIt()
+  /** destructured names of a binding vector, kept with the state of its top-level form */
+  internal fun bindingTable(bindings: CVec, mode: String): BindingTable {
+    val formState = bindings.parents().find { it.parent === this }?.let { state.forms[it] }
+        ?: return BindingTable(bindings, mode)
+    return formState.bindings.getOrPut(bindings) { BindingTable(bindings, mode) }
   }
 
+  /** qualified names of all the keywords in this file, collected per top-level form and reused for unchanged forms */
+  val keywords: Set<String> get() = state.keywords
+
   private data class State(
       val timeStamp: Long,
       val namespace: String,
       val definitions: List<CList>,
-      val imports: List<Imports>
-  )
+      val imports: List<Imports>,
+      val forms: Map<PsiElement, FormState>
+  ) {
+    val keywords: Set<String> by lazy {
+      forms.entries.flatMapTo(LinkedHashSet()) { (form, formState) -> formState.keywords(form) }
+    }
+
+    /** defs inside reader conditional branches */
+    private val conditionalDefs: Map<CList, Dialect> by lazy {
+      forms.values.filter { it.dialects.isNotEmpty() }.let { list ->
+        if (list.isEmpty()) emptyMap() else list.fold(HashMap<CList, Dialect>()) { m, o -> m.putAll(o.dialects); m }
+      }
+    }
+    private val dialectDefinitions = ConcurrentHashMap<Dialect, List<CList>>()
+
+    fun definitions(dialect: Dialect?): List<CList> =
+        if (dialect == null || conditionalDefs.isEmpty()) definitions
+        else dialectDefinitions.getOrPut(dialect) { definitions.filter { conditionalDefs[it].let { o -> o == null || o == dialect } } }
+
+    val dialectRanges: DialectRanges by lazy {
+      DialectRanges(forms.values.flatMap { it.conditionals.entries }.map { (form, dialect) ->
+        form.textRange.let { Triple(it.startOffset, it.endOffset, dialect) } })
+    }
+
+    private val importTables = ConcurrentHashMap<Dialect, ImportTable>()
+
+    fun importTable(dialect: Dialect) = importTables.getOrPut(dialect) { ImportTable(imports, dialect) }
+  }
 
   @Volatile
-  private var myRolesDirty: Boolean = false
+  private var myState: State? = null
+  /** top-level forms changed since the last pass, their roles are not read from [myState] */
+  private var changedForms: MutableSet<PsiElement> = ContainerUtil.newConcurrentSet()
   @Volatile
-  private var myState: State? = State(-1, "", emptyList(), emptyList())
+  private var myModificationCount: Long = 0
+  /** roles depend on this file only, code fragments also count their context file changes */
+  internal val stateStamp: Long get() = modificationStamp + myModificationCount
+  /** one thread assigns roles, the others wait for its result except for the EDT that never waits */
+  private var stateLock = ReentrantLock()
   private val state: State
     get() {
-      val curTimeStamp = manager.modificationTracker.modificationCount
-      val curState = myState
-      if (curState != null && curState.timeStamp == curTimeStamp) return curState
-      myState = null
-
-      // makes sure half-applied roles due to ProcessCanceledException
-      // are cleared on subtreeChanged
-      myRolesDirty = true
+      myState?.let { if (it.timeStamp == stateStamp) return it }
+      if (ApplicationManager.getApplication().isDispatchThread) {
+        // no writes while reading, so the EDT computes the same state on its own instead of waiting
+        if (!stateLock.tryLock()) return computeState()
+      }
+      else while (!stateLock.tryLock(STATE_LOCK_WAIT_MS, TimeUnit.MILLISECONDS)) {
+        ProgressManager.checkCanceled()
+      }
+      try {
+        return computeState()
+      }
+      finally {
+        stateLock.unlock()
+      }
+    }
 
-      val helper = RoleHelper()
-      helper.assignRoles(this, curState != null && curState.timeStamp < 0)
-      val definitions = cljTraverser().traverse()
-          .filter { (it as? CComposite)?.dataImpl is IDef }
-          .filter(CList::class).toList()
-      val state = State(curTimeStamp, helper.fileNS, definitions, helper.imports)
+  private fun computeState(): State {
+    val curTimeStamp = stateStamp
+    val curState = myState
+    if (curState != null && curState.timeStamp == curTimeStamp) return curState
+
+    // roles half-assigned due to ProcessCanceledException are dropped with the helper
+    val prevHelper = ROLE_HELPER.get()
+    try {
+      var helper = RoleHelper(this).also { ROLE_HELPER.set(it) }
+      var forms = helper.assignRoles(curState?.forms ?: emptyMap(), changedForms)
+      if (curState != null && (curState.namespace != helper.fileNS ||
+              curState.imports.fingerprint() != helper.imports.fingerprint())) {
+        // ns or imports changed, all the reused forms are stale
+        helper = RoleHelper(this).also { ROLE_HELPER.set(it) }
+        forms = helper.assignRoles(emptyMap(), emptySet())
+      }
+      val definitions = forms.values.flatMapTo(ArrayList()) { it.definitions }
+      val state = State(curTimeStamp, helper.fileNS, definitions, helper.imports, forms)
       myState = state
+      changedForms.clear()
       return state
     }
+    finally {
+      if (prevHelper == null) ROLE_HELPER.remove() else ROLE_HELPER.set(prevHelper)
+    }
+  }
+
+  internal fun formChanged(form: PsiElement) {
+    changedForms.add(form)
+  }
+
+  /** roles of a top-level [form], assigned first if [compute] is set */
+  internal fun roleTable(form: PsiElement, compute: Boolean): RoleTable? {
+    ROLE_HELPER.get()?.let { if (it.file === this) return it.roleTable(form) }
+    val state = if (compute) state else myState?.takeIf { !changedForms.contains(form) } ?: return null
+    return state.forms[form]?.roles
+  }
 
   override fun subtreeChanged() {
     super.subtreeChanged()
-    val clearRoles = myRolesDirty || myState != null
+    myModificationCount++
     fileStub = null
-    myState = null
-    if (clearRoles) {
-      clearRoles()
-      myRolesDirty = false
+    val prevForms = myState?.forms ?: return
+    // reassign only the changed top-level forms unless
+    // the change affects other forms via ns, imports or core-alike defs
+    val forms = iterate().filter { it.firstChild != null }.toList()
+    val current = forms.toHashSet()
+    var clearAll = prevForms.entries.find { !current.contains(it.key) && it.value.affectsContext } != null
+    if (!clearAll) {
+      for (form in forms) {
+        if (!changedForms.contains(form) && prevForms.containsKey(form)) continue
+        // a form that affected the context before the change, e.g. `(defn let ..)` renamed, counts too
+        if (prevForms[form]?.affectsContext == true || affectsContext(form)) {
+          clearAll = true
+          break
+        }
+      }
+    }
+    if (clearAll) {
+      myState = null
+      changedForms.clear()
     }
   }
 
-  private fun clearRoles() {
-    for (e in cljTraverser().traverse()) {
-      setData(e, null)
-      resetFlags(e)
-      setFlag((e as? CCommented)?.form, FLAG_COMMENTED)
-    }
+  override fun cloneImpl(treeClone: FileElement): PsiFileImpl {
+    val clone = super.cloneImpl(treeClone) as CFileImpl
+    // the state refers to the forms of this file
+    clone.myState = null
+    clone.changedForms = ContainerUtil.newConcurrentSet()
+    clone.stateLock = ReentrantLock()
+    return clone
   }
 
   override fun processDeclarations(processor: PsiScopeProcessor, state: ResolveState, lastParent: PsiElement?, place: PsiElement): Boolean {
@@ -165,9 +289,12 @@ open class CFileImpl(viewProvider: FileViewProvider, language: Language) :
     if (placeFile !== this) {
       val fileStub = fileStub
       if (fileStub != null) {
-        val s = JBTreeTraverser<CStub> { o -> o.childrenStubs }
+        val s = if (isAccess) JBIterable.from(fileStub.findChildStubsByType("method"))
+        else if (refText == null) JBTreeTraverser<CStub> { o -> o.childrenStubs }
             .withRoot(fileStub)
             .filter(CListStub::class.java)
+        else JBIterable.from(fileStub.findChildStubs(refText)).append(
+            SYNTHETIC_PREFIXES.find { refText.startsWith(it) }?.let { fileStub.findChildStubs(refText.substring(it.length)) })
         s.forEach { stub ->
           val private = checkPrivate && (stub.key.type == "defn-" || stub.meta[PRIVATE_META] != null)
           val parentKey = (stub.parentStub as? CListStub)?.key
@@ -176,7 +303,7 @@ open class CFileImpl(viewProvider: FileViewProvider, language: Language) :
         }
       }
       else {
-        defs().forEach {
+        defs(langKind).forEach {
           val private = checkPrivate && (it.def!!.type == "defn-" || (it.def as? Def)?.meta?.containsKey(PRIVATE_META) ?: false)
           val def = it.def!!
           val parentDef = it.parentForm?.def
@@ -192,7 +319,7 @@ open class CFileImpl(viewProvider: FileViewProvider, language: Language) :
       !it.textRange.containsOffset(placeOffset) && it.resolveInfo()?.type == "defmacro"
     } ?: false
 
-    defs().takeWhile { inMacro ||
+    defs(langKind).takeWhile { inMacro ||
         (if (it.def!!.type == "method") it.parentForm!! else it).textRange.startOffset < placeOffset }
         .forEach {
           val private = checkPrivate && (it.def!!.type == "defn-" || (it.def as? Def)?.meta?.containsKey(PRIVATE_META) ?: false)
@@ -212,10 +339,39 @@ open class CFileImpl(viewProvider: FileViewProvider, language: Language) :
                               refText: String?, placeOffset: Int, dialect: Dialect, isQualifier: Boolean,
                               defService: ClojureDefinitionService): Boolean {
     val namespace = namespace
+    val table = this.state.importTable(dialect).takeIf { placeOffset >= it.validFrom }
+    // imported names depend on the import context only unless renamed, accessed or looked up from the same namespace
+    val cacheKey = if (table == null || refText == null || isQualifier || state !== ResolveState.initial() ||
+        table.hasRenames || table.namespaces.contains(namespace) || dialect.coreNs == namespace ||
+        (place as? CElement)?.parent is CAccess || DumbService.getInstance(project).isDumb) null
+    else ImportResolveKey(table.fingerprint, namespace, refText, dialect)
+    if (cacheKey == null) {
+      return processImportsImpl(processor, state, place, refText, placeOffset, dialect, isQualifier, defService, table)
+    }
+    val cache = defService.importResolveCache
+    val offers = cache[cacheKey] ?: ArrayList<Pair<PsiElement, ResolveState>>().also { list ->
+      processImportsImpl(object : PsiScopeProcessor by processor {
+        override fun execute(element: PsiElement, state: ResolveState): Boolean {
+          list.add(element to state)
+          return true
+        }
+      }, state, place, refText, placeOffset, dialect, isQualifier, defService, table)
+      if (list.size <= IMPORT_RESOLVE_CACHE_LIMIT) cache[cacheKey] = list
+    }
+    for ((element, elementState) in offers) {
+      if (!processor.execute(element, elementState)) return false
+    }
+    return true
+  }
+
+  private fun processImportsImpl(processor: PsiScopeProcessor, state: ResolveState, place: PsiElement,
+                                 refText: String?, placeOffset: Int, dialect: Dialect, isQualifier: Boolean,
+                                 defService: ClojureDefinitionService, table: ImportTable?): Boolean {
+    val namespace = namespace
     val forceAlias = state.get(ALIAS_KEY)
     var langKindNSVisited = false
     val thisImport = this.state.imports.find { it.range.contains(placeOffset) }
-    val imports = importsAtOffset(placeOffset, dialect)
+    val imports = table?.imports ?: importsAtOffset(placeOffset, dialect)
     for (import in imports.flatMap { it.imports }) {
       if (refText == null || isQualifier) {
         if (!import.isPlatform && import.aliasSym != null) {
@@ -238,10 +394,15 @@ open class CFileImpl(viewProvider: FileViewProvider, language: Language) :
         if (import.nsType == "require" &&
             import.refer.isEmpty() && import.only.isEmpty() && import.rename.isEmpty()) continue
         langKindNSVisited = langKindNSVisited || dialect.coreNs == import.namespace
+        if (refText != null && table != null && !table.mayRefer(import.namespace, refText)) continue
         val refersByDefault = import.nsType == "refer" || import.nsType == "refer-clojure" || import.nsType == "use"
         if (!processNamespace(import.namespace, dialect, state,
             if (thisImport != null && thisImport.imports.contains(import)) processor
             else object : PsiScopeProcessor by processor {
+              // renamed symbols are looked up by their original names
+              override fun <T : Any?> getHint(hintKey: Key<T>): T? =
+                  if (hintKey == NAME_HINT && import.rename.isNotEmpty()) null else processor.getHint(hintKey)
+
               override fun execute(element: PsiElement, state: ResolveState): Boolean {
                 val name = element.asCTarget?.key?.name ?: element.asDef?.def?.name ?: return true
                 if (import.exclude.contains(name)) return true
@@ -278,6 +439,8 @@ open class CFileImpl(viewProvider: FileViewProvider, language: Language) :
         if (place != null) placeLanguage(place)
         else if (language == ClojureScriptLanguage) Dialect.CLJS else Dialect.CLJ
     val placeOffset = place?.textRange?.startOffset ?: textLength
+    val table = state.importTable(langKind)
+    if (placeOffset >= table.validFrom) return table.aliases
 
     val imports = importsAtOffset(placeOffset, langKind)
     val insideImport = imports.find { it.range.contains(placeOffset) } != null
@@ -326,6 +489,9 @@ internal fun processPrecomputedDeclarations(dialect: Dialect, refText: String?,
   return false
 }
 
+/** prefixes of the [processSyntheticDeclarations] names */
+private val SYNTHETIC_PREFIXES = listOf("->", "map->")
+
 private fun processSyntheticDeclarations(def: IDef, private: Boolean,
                                          processor: PsiScopeProcessor, state: ResolveState,
                                          refText: String?, defService: ClojureDefinitionService): Boolean {
@@ -340,7 +506,7 @@ private fun processSyntheticDeclarations(def: IDef, private: Boolean,
   return true
 }
 
-private class RoleHelper {
+private class RoleHelper(val file: CFileImpl) {
   val langStack = ArrayDeque<Dialect>()
   val nsReader = NSReader(this)
   val fileNS: String get() = nsReader.fileNS ?: ClojureConstants.NS_USER
@@ -356,18 +522,115 @@ private class RoleHelper {
         .firstOrNull { !it.isPlatform && it.alias == alias }?.namespace
   }
 
-  fun assignRoles(file: CFile, firstTime: Boolean) {
-    val seenDefs = mutableSetOf<String>()
-    val delayedDefs = mutableMapOf<CList, IDef>()
+  /**
+   * Assigns roles form by form, top-level forms from [prevForms] that are not
+   * changed since the last pass are reused as is.
+   */
+  fun assignRoles(prevForms: Map<PsiElement, FormState>, changed: Set<PsiElement>): Map<PsiElement, FormState> {
     langStack.push(if (file.language == ClojureScriptLanguage) Dialect.CLJS else Dialect.CLJ)
+    for (root in file.iterate()) {
+      if (root.firstChild == null) continue
+      val prev = prevForms[root]
+      if (prev != null && root is CComposite && !changed.contains(root) &&
+          (prev.imports.isEmpty() || prev.offset == root.textRange.startOffset)) {
+        seenDefs.addAll(prev.defNames)
+        nsReader.result.addAll(prev.imports)
+        if (nsReader.fileNS == null) nsReader.fileNS = prev.fileNS
+        forms[root] = prev
+        continue
+      }
+      forms[root] = assignRoles(root)
+    }
+    return forms
+  }
+
+  private val forms = LinkedHashMap<PsiElement, FormState>()
+  private var currentRoot: PsiElement? = null
+  var currentRoles = RoleTable.Builder()
+    private set
+  /** keys of the elements of the form being processed, each one is derived from the key of its parent */
+  private val currentKeys = HashMap<PsiElement, Long>()
+
+  fun roleTable(form: PsiElement): RoleTable? = if (form === currentRoot) currentRoles else forms[form]?.roles
+
+  /** the key of [o] if it is already computed in this traversal */
+  fun knownKey(o: CComposite): Long? = currentKeys[o]
+
+  /** the key of [o] in the form being processed, null for elements of other forms */
+  private fun currentKey(o: CComposite): Long? {
+    currentKeys[o]?.let { return it }
+    val root = currentRoot ?: return null
+    val start = if (o === root) 0 else {
+      val parent = o.treeParent as? CComposite ?: return null
+      (currentKey(parent) ?: return null).keyStart + o.startOffsetInParent
+    }
+    return roleKey(start, start + o.textLength).also { currentKeys[o] = it }
+  }
+
+  private fun currentRole(o: PsiElement): Role = dataRole((o as? CComposite)?.let { currentKey(it) }?.let { currentRoles.data(it) })
+
+  fun setData(o: PsiElement?, data: Any?) {
+    if (o is CComposite) currentRoles.setData(currentKey(o) ?: return, data)
+  }
+
+  fun setFlag(o: PsiElement?, flag: Int) {
+    if (o is CComposite) currentRoles.setFlag(currentKey(o) ?: return, flag)
+  }
+
+  fun setResolveTo(o: CSymbol?, key: SymKey) {
+    setData(o, ResolveTo(key))
+  }
+
+  private val seenDefs = mutableSetOf<String>()
+  private val formDefs = mutableSetOf<String>()
+  private val formDefinitions = ArrayList<CList>()
+  private val formDialects = HashMap<CList, Dialect>()
+  private val formConditionals = LinkedHashMap<PsiElement, Dialect>()
 
-    val s = file.cljTraverser().expand {
-      it !is CListBase || (it as CComposite).roleImpl.let { r -> r != Role.DEF && r != Role.NS }
+  /** records a def or ns form as its data is set, the dialect is kept for reader conditional branches only */
+  fun recordDefinition(e: CListBase) {
+    formDefinitions.add(e)
+    if (langStack.size > 1) formDialects[e] = currentLangKind()
+  }
+
+  private fun seeDef(name: String) {
+    seenDefs.add(name)
+    formDefs.add(name)
+  }
+
+  private fun assignRoles(root: PsiElement): FormState {
+    val importCount = nsReader.result.size
+    val fileNS = nsReader.fileNS
+    formDefs.clear()
+    formDefinitions.clear()
+    formDialects.clear()
+    formConditionals.clear()
+    val roles = RoleTable.Builder()
+    currentRoot = root
+    currentRoles = roles
+    currentKeys.clear()
+    processForm(root)
+    currentRoot = null
+    currentRoles = RoleTable.Builder()
+    currentKeys.clear()
+    val imports = nsReader.result.subList(importCount, nsReader.result.size).toList()
+    // defs are finished on the closing paren, i.e. inner ones first
+    val definitions = if (formDefinitions.size < 2) formDefinitions.toList()
+    else formDefinitions.sortedBy { it.textRange.startOffset }
+    return FormState(
+        if (imports.isEmpty()) -1 else root.textRange.startOffset,
+        if (fileNS == null) nsReader.fileNS else null,
+        definitions, if (formDialects.isEmpty()) emptyMap() else HashMap(formDialects),
+        if (formConditionals.isEmpty()) emptyMap() else LinkedHashMap(formConditionals),
+        imports, formDefs.toSet(), roles.build())
+  }
+
+  private fun processForm(root: PsiElement) {
+    val delayedDefs = mutableMapOf<CList, IDef>()
+    val s = root.cljTraverser().expand {
+      it !is CListBase || currentRole(it).let { r -> r != Role.DEF && r != Role.NS }
     }.traverse()
 
-    if (firstTime) {
-      s.onEach(this::initFlags)
-    }
     for (e in s) {
       initFlags(e)
       if (e is CKeywordBase) {
@@ -380,11 +643,13 @@ private class RoleHelper {
           val parent = e.parent as CListBase
           val def = delayedDefs.remove(parent) ?: continue
           setData(parent, def)
+          recordDefinition(parent)
         }
       }
       // optimization: take other threads work into account
-      else if (e is CListBase && (e as CComposite).roleImpl == Role.DEF) {
-        seenDefs.add(e.def!!.qualifiedName)
+      else if (e is CListBase && currentRole(e) == Role.DEF) {
+        seeDef(e.def!!.qualifiedName)
+        recordDefinition(e)
       }
       else if (e is CListBase && processRCParenForm(e)) {
         // nothing
@@ -406,7 +671,7 @@ private class RoleHelper {
             setData(nameSym.qualifier, key.namespace)
             setData(nameSym, Role.NAME)
             delayedDefs[e] = createDef(e, nameSym, key)
-            seenDefs.add(key.qualifiedName)
+            seeDef(key.qualifiedName)
 
             if (ClojureConstants.OO_ALIKE_SYMBOLS.contains(firstName)) {
               if (firstName == "defrecord" || firstName == "deftype" || firstName == "definterface") {
@@ -425,7 +690,7 @@ private class RoleHelper {
           val key = SymKey(firstName, fileNS, "method")
           setData(first, Role.NAME)
           delayedDefs[e] = createDef(e, first, key)
-          seenDefs.add(key.name)
+          seeDef(key.name)
         }
         else if (ClojureConstants.NS_ALIKE_SYMBOLS.contains(firstName) && ns == langKind.coreNs) {
           processNSElement(e)
@@ -527,6 +792,10 @@ private class RoleHelper {
       it == ClojureTypes.C_SHARP_QMARK_AT || it == ClojureTypes.C_SHARP_QMARK
     }}?.firstChild.elementType ?: return false
     setData(e, if (rcType == ClojureTypes.C_SHARP_QMARK_AT) Role.RCOND_S else Role.RCOND)
+    e.childForms(CForm::class).forEach { o ->
+      val key = o.prevForm as? CKeyword ?: return@forEach
+      formConditionals[o] = if (key.name == "cljs") Dialect.CLJS else Dialect.CLJ
+    }
     return true
   }
 
@@ -572,6 +841,9 @@ private class NSReader(val helper: RoleHelper) {
   var fileNS: String? = null
   val result = mutableListOf<Imports>()
 
+  private fun setData(o: PsiElement?, data: Any?) = helper.setData(o, data)
+  private fun setResolveTo(o: CSymbol?, key: SymKey) = helper.setResolveTo(o, key)
+
   fun processElement(e: CListBase) {
     val nsType = (e as CList).first!!.name
     var imports: MutableList<Imports>? = null
@@ -582,6 +854,7 @@ private class NSReader(val helper: RoleHelper) {
       imports = mutableListOf()
       setData(nameSym, Role.NAME)
       setData(e, NSDef(SymKey(nsName, "", "ns"), imports))
+      helper.recordDefinition(e)
       if (fileNS == null && nsType != "create-ns" && e.parentForm == null) {
         fileNS = nsName
       }
@@ -692,6 +965,7 @@ private class NSReader(val helper: RoleHelper) {
     val nsSym = if (forcedNamespace) null else (iterator.safeNext() as? CSymbol ?: return null)
     var aliasSym: CSymbol? = null
     var refer: CForm? = null
+    var referMacros: CPForm? = null
     var only: CPForm? = null
     var exclude: CPForm? = null
     var rename: JBIterable<CSymbol>? = null
@@ -700,6 +974,7 @@ private class NSReader(val helper: RoleHelper) {
       when (flag) {
         "as" -> if (nsType != "refer") aliasSym = iterator.safeNext() as? CSymbol else iterator.safeNext()
         "refer" -> if (nsType != "refer") refer = iterator.safeNext().let { it as? CPForm ?: it as? CKeyword }
+        "refer-macros" -> if (nsType != "refer") referMacros = iterator.safeNext() as? CPForm
         "only" -> only = iterator.safeNext() as? CLVForm
         "exclude" -> exclude = iterator.safeNext() as? CLVForm
         "rename" -> rename = (iterator.safeNext() as? CMap).childForms(CSymbol::class)
@@ -713,7 +988,8 @@ private class NSReader(val helper: RoleHelper) {
         .transform { sym -> sym.name.also { setResolveTo(sym, SymKey(it, namespace, "def")) } }.toSet()
 
     val import = Import(nsType, namespace, alias, aliasSym,
-        (refer as? CPForm)?.toNames() ?: (refer as? CKeyword)?.let { if (it.name == "all") ALL else null } ?: emptySet(),
+        ((refer as? CPForm)?.toNames() ?: (refer as? CKeyword)?.let { if (it.name == "all") ALL else null } ?: emptySet())
+            .let { if (referMacros == null || it === ALL) it else it + referMacros.toNames() },
         only.toNames(), exclude.toNames(),
         rename?.split(2, true)?.reduce(HashMap()) { map, o ->
           if (o.size == 2) map[o[0].name] = o[1].also { setResolveTo(it, SymKey(it.name, namespace, "alias")) }; map
@@ -760,6 +1036,68 @@ private class NSReader(val helper: RoleHelper) {
   }
 }
 
+internal class FormState(
+    val offset: Int,
+    val fileNS: String?,
+    val definitions: List<CList>,
+    val dialects: Map<CList, Dialect>,
+    val conditionals: Map<PsiElement, Dialect>,
+    val imports: List<Imports>,
+    val defNames: Set<String>,
+    val roles: RoleTable) {
+  @Volatile
+  private var keywords: Set<String>? = null
+
+  fun keywords(form: PsiElement): Set<String> = keywords ?: form.cljTraverser().traverse()
+      .filter(CKeyword::class).map { it.qualifiedName }.toSet().also { keywords = it }
+
+  /** binding tables of the vectors in this form, see [processBindings] */
+  val bindings: ConcurrentMap<CVec, BindingTable> by lazy { ConcurrentHashMap<CVec, BindingTable>() }
+
+  val affectsContext: Boolean
+    get() = fileNS != null || imports.isNotEmpty() ||
+        definitions.find { CONTEXT_SYMBOLS.contains(it.def!!.name) } != null
+}
+
+/**
+ * Reader conditional branches sorted by start offset, each with the index of its enclosing branch,
+ * so that the innermost branch at an offset is found by a binary search and a walk up the nesting.
+ */
+internal class DialectRanges(ranges: List<Triple<Int, Int, Dialect>>) {
+  private val sorted = ranges.sortedWith(compareBy({ it.first }, { -it.second }))
+  private val starts = IntArray(sorted.size) { sorted[it].first }
+  private val parents = IntArray(sorted.size).also { parents ->
+    val stack = ArrayDeque<Int>()
+    for (i in sorted.indices) {
+      while (stack.isNotEmpty() && sorted[stack.peek()].second <= sorted[i].first) stack.pop()
+      parents[i] = if (stack.isEmpty()) -1 else stack.peek()
+      stack.push(i)
+    }
+  }
+
+  fun dialectAt(offset: Int): Dialect? {
+    var i = Arrays.binarySearch(starts, offset).let { if (it < 0) -it - 2 else it }
+    // the last one of equal starts is the innermost
+    while (i + 1 < starts.size && starts[i + 1] == offset) i++
+    while (i >= 0 && sorted[i].second <= offset) i = parents[i]
+    return if (i >= 0) sorted[i].third else null
+  }
+}
+
+/** symbols that change the roles of the forms that follow */
+private val CONTEXT_SYMBOLS = ClojureConstants.DEF_ALIKE_SYMBOLS + ClojureConstants.NS_ALIKE_SYMBOLS +
+    ClojureConstants.LET_ALIKE_SYMBOLS + setOf("letfn", "defmethod", "comment")
+
+private fun affectsContext(form: PsiElement) = form.cljTraverser().traverse().filter(CListBase::class).find {
+  val first = it.first ?: return@find false
+  ClojureConstants.NS_ALIKE_SYMBOLS.contains(first.name) ||
+      first.name.startsWith("def") && (first.nextForm as? CSymbol)?.name?.let { CONTEXT_SYMBOLS.contains(it) } == true
+} != null
+
+private fun List<Imports>.fingerprint() = map { o ->
+  o.dialect to o.imports.map { listOf(it.nsType, it.namespace, it.alias, it.refer, it.only, it.exclude, it.rename.keys) }
+}
+
 internal class NSDef(
     val key: SymKey,
     val imports: List<Imports>
@@ -771,6 +1109,58 @@ internal data class Imports(
     val range: TextRange,
     val scopeEnd: Int)
 
+/**
+ * Names visible via all the file-level imports of a [dialect].
+ * Valid from [validFrom] on, i.e. past every ns form and every scoped import.
+ */
+internal class ImportTable(all: List<Imports>, dialect: Dialect) {
+  val imports: List<Imports> = all.asReversed().filter { it.dialect == dialect && it.scopeEnd < 0 }
+  val validFrom: Int = all.filter { it.dialect == dialect }.map { Math.max(it.range.endOffset, it.scopeEnd) }.maxOrNull() ?: 0
+  /** namespace to alias */
+  val aliases: Map<String, String>
+  /** referred and renamed names to the namespaces they come from */
+  val referred: Map<String, Set<String>>
+  /** namespaces with all the public names referred */
+  val referAll: Set<String>
+  /** qualified names dropped via `:exclude` */
+  val excluded: Set<String>
+
+  init {
+    val list = imports.flatMap { it.imports }.filter { !it.isPlatform && it.nsType != "alias" }
+    aliases = imports.flatMap { it.imports }.filter { it.aliasSym != null }.associateBy({ it.namespace }, { it.alias })
+    referred = HashMap<String, MutableSet<String>>().apply {
+      list.forEach { o ->
+        (o.refer + o.only + o.rename.keys).forEach { getOrPut(it) { HashSet() }.add(o.namespace) }
+        o.rename.values.forEach { getOrPut((it as? CSymbol)?.name ?: it.toString()) { HashSet() }.add(o.namespace) }
+      }
+    }
+    referAll = list.filter { o ->
+      o.refer == ALL || o.only.isEmpty() && (o.nsType == "refer" || o.nsType == "refer-clojure" || o.nsType == "use")
+    }.mapTo(HashSet()) { it.namespace }
+    excluded = list.flatMapTo(HashSet()) { o -> o.exclude.map { it.withNamespace(o.namespace) } }
+  }
+
+  val namespaces: Set<String> = imports.flatMapTo(HashSet()) { o -> o.imports.map { it.namespace } }
+  val hasRenames: Boolean = imports.find { o -> o.imports.find { it.rename.isNotEmpty() } != null } != null
+  val fingerprint: ImportsFingerprint by lazy { ImportsFingerprint(imports.fingerprint()) }
+
+  fun mayRefer(namespace: String, name: String) = referred[name]?.contains(namespace) == true ||
+      referAll.contains(namespace) && !excluded.contains(name.withNamespace(namespace))
+}
+
+/** equal for files with the same imports, the hash is computed once */
+internal class ImportsFingerprint(private val value: Any) {
+  private val hash = value.hashCode()
+  override fun hashCode() = hash
+  override fun equals(other: Any?) = other is ImportsFingerprint && hash == other.hash && value == other.value
+}
+
+internal data class ImportResolveKey(
+    val imports: ImportsFingerprint,
+    val namespace: String,
+    val refText: String,
+    val dialect: Dialect)
+
 internal data class Import(
     val nsType: String,
     val namespace: String,
@@ -783,22 +1173,81 @@ internal data class Import(
   val isPlatform: Boolean get() = nsType == "import"
 }
 
-private fun setData(o: PsiElement?, data: Any?) {
-  if (o is CComposite) o.dataImpl = data
-}
+/**
+ * Roles, defs and flags of the elements of a top-level form kept aside from the PSI,
+ * keyed by the start and end offsets in the form, see [roleKey].
+ * A table stays valid as long as its form is unchanged and is dropped with its [FormState].
+ */
+internal open class RoleTable(private val keys: LongArray, private val data: Array<Any?>, private val flags: IntArray) {
+  open fun data(key: Long): Any? = keys.binarySearch(key).let { if (it < 0) null else data[it] }
+  open fun flags(key: Long): Int = keys.binarySearch(key).let { if (it < 0) 0 else flags[it] }
 
-private fun setFlag(o: PsiElement?, flag: Int) {
-  if (o is CComposite) o.flagsImpl = o.flagsImpl or flag
+  /** collects the roles of a form being processed */
+  class Builder : RoleTable(LongArray(0), emptyArray(), IntArray(0)) {
+    private val dataMap = HashMap<Long, Any>()
+    private val flagsMap = HashMap<Long, Int>()
+
+    override fun data(key: Long): Any? = dataMap[key]
+    override fun flags(key: Long): Int = flagsMap[key] ?: 0
+
+    fun setData(key: Long, data: Any?) {
+      if (data == null) dataMap.remove(key) else dataMap[key] = data
+    }
+
+    fun setFlag(key: Long, flag: Int) {
+      flagsMap[key] = flags(key) or flag
+    }
+
+    fun build(): RoleTable {
+      if (dataMap.isEmpty() && flagsMap.isEmpty()) return EMPTY
+      val keys = (dataMap.keys + flagsMap.keys).toLongArray().apply { sort() }
+      return RoleTable(keys, Array(keys.size) { dataMap[keys[it]] }, IntArray(keys.size) { flagsMap[keys[it]] ?: 0 })
+    }
+  }
+
+  companion object {
+    val EMPTY = RoleTable(LongArray(0), emptyArray(), IntArray(0))
+  }
 }
 
-private fun resetFlags(o: PsiElement?) {
-  if (o is CComposite) o.flagsImpl = 0
+/** the start (32 bits) and end (32 bits) offsets in the top-level form, nested elements never share both */
+private fun roleKey(start: Int, end: Int): Long = (start.toLong() shl 32) or end.toLong()
+
+private val Long.keyStart: Int get() = (this ushr 32).toInt()
+
+/** the helper of the role assignment running in this thread, the roles being assigned are seen by it only */
+private val ROLE_HELPER = ThreadLocal<RoleHelper>()
+
+/** the top-level form of [e] and the key of [e] in its [RoleTable], null if [e] is not in a file */
+private inline fun <T> withRoleKey(e: CComposite, block: (form: TreeElement, key: Long) -> T): T? {
+  var node: TreeElement = e
+  var offset = 0
+  while (true) {
+    val parent = node.treeParent ?: return null
+    if (parent is FileElement) break
+    offset += node.startOffsetInParent
+    node = parent
+  }
+  return block(node, roleKey(offset, offset + e.textLength))
 }
 
-private fun setResolveTo(o: CSymbol?, key: SymKey) {
-  setData(o, ResolveTo(key))
+private inline fun <T> withRoleTable(e: CComposite, compute: Boolean, block: (RoleTable, Long) -> T): T? {
+  // elements visited by the role assignment in this thread skip the walk up to the file
+  ROLE_HELPER.get()?.let { helper -> helper.knownKey(e)?.let { return block(helper.currentRoles, it) } }
+  return withRoleKey(e) { form, key ->
+    (form.treeParent.psi as? CFileImpl)?.roleTable(form.psi, compute)?.let { block(it, key) }
+  }
 }
 
+/** role data of [e], the roles of the file are assigned first if [compute] is set */
+internal fun roleData(e: CComposite, compute: Boolean): Any? =
+    withRoleTable(e, compute) { table, key -> table.data(key) }
+
+/** role flags of [e], the commented flag also holds for forms not processed yet */
+internal fun roleFlags(e: CComposite, compute: Boolean): Int =
+    (withRoleTable(e, compute) { table, key -> table.flags(key) } ?: 0) or
+        (if ((e.parent as? CCommented)?.form === e) FLAG_COMMENTED else 0)
+
 fun PsiElement?.rcTraverser(rcKey: String) = cljTraverser()
     .forceDisregard { e ->
       val r = e.fastRole
@@ -22,6 +22,7 @@ import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.text.StringUtil
 import com.intellij.psi.*
 import com.intellij.psi.impl.source.tree.CompositePsiElement
+import com.intellij.psi.impl.source.tree.FileElement
 import com.intellij.psi.tree.IElementType
 import com.intellij.psi.util.PsiUtilCore
 import org.intellij.clojure.ClojureIcons
@@ -67,25 +68,26 @@ class ClojurePsiImplUtil {
 }
 
 open class CComposite(tokenType: IElementType) : CompositePsiElement(tokenType), CElement {
-  override val role: Role get() = role(data)
-  override val flags: Int get() = role.run { flagsImpl }
+  override val role: Role get() = dataRole(data)
+  override val flags: Int get() = roleFlags(this, true)
   override val def: IDef? get() = data as? IDef
   override val resolvedNs: String? get() = data as? String
 
-  @JvmField internal var dataImpl: Any? = null
-  @JvmField internal var flagsImpl: Int = 0
+  internal val roleImpl: Role get() = dataRole(roleData(this, false))
+  internal val data: Any get() = roleData(this, true) ?: Role.NONE
 
-  internal val roleImpl: Role get() = role(dataImpl)
-  internal val data: Any get() = dataImpl ?: (containingFile as CFileImpl).checkState().let {
-    dataImpl ?: Role.NONE.also { dataImpl = it }
+  override fun clearCaches() {
+    super.clearCaches()
+    // top-level forms only, the file keeps their roles in a side table
+    ((treeParent as? FileElement)?.psi as? CFileImpl)?.formChanged(this)
   }
+}
 
-  private fun role(data: Any?): Role = when (data) {
-    is Role -> data
-    is Imports, is NSDef -> Role.NS
-    is IDef -> Role.DEF
-    else -> Role.NONE
-  }
+internal fun dataRole(data: Any?): Role = when (data) {
+  is Role -> data
+  is Imports, is NSDef -> Role.NS
+  is IDef -> Role.DEF
+  else -> Role.NONE
 }
 
 abstract class CListBase(nodeType: IElementType) : CLVFormImpl(nodeType), CList, ItemPresentation {
@@ -142,11 +144,11 @@ fun newLeafPsiElement(project: Project, s: String): PsiElement =
 
 
 val PsiElement?.fastRole: Role get() = (this as? CComposite)?.roleImpl ?: Role.NONE
-val PsiElement?.fastFlags: Int get() = (this as? CComposite)?.flagsImpl ?: 0
+val PsiElement?.fastFlags: Int get() = (this as? CComposite)?.let { roleFlags(it, false) } ?: 0
 fun PsiElement?.fastFlagIsSet(flag: Int): Boolean = fastFlags and flag == flag
 val CList?.fastDef: IDef?
   get() = (this as? CListBase)?.run {
-    ((this as CComposite).dataImpl as? IDef)?.run {
+    (roleData(this as CComposite, false) as? IDef)?.run {
       if (name == "" && type == "") null else this
     } ?: first?.let { type ->
       (type.nextForm as? CSymbol)?.let { name ->
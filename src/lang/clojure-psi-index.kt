@@ -17,70 +17,478 @@
 
 package org.intellij.clojure.psi.impl
 
+import com.intellij.lang.Language
+import com.intellij.openapi.util.Key
+import com.intellij.openapi.util.io.FileUtilRt
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.psi.tree.IElementType
 import com.intellij.util.indexing.*
 import com.intellij.util.io.DataExternalizer
+import com.intellij.util.io.DataInputOutputUtil
 import com.intellij.util.io.EnumeratorStringDescriptor
+import com.intellij.util.io.IOUtil
+import org.intellij.clojure.ClojureConstants
 import org.intellij.clojure.lang.ClojureFileType
+import org.intellij.clojure.lang.ClojureLanguage
+import org.intellij.clojure.lang.ClojureScriptLanguage
+import org.intellij.clojure.lang.ClojureTokens
+import org.intellij.clojure.parser.ClojureLexer
 import org.intellij.clojure.psi.CFile
 import org.intellij.clojure.psi.CKeyword
-import org.intellij.clojure.util.cljTraverser
-import org.intellij.clojure.util.filter
-import org.intellij.clojure.util.qualifiedName
+import org.intellij.clojure.psi.Def
+import org.intellij.clojure.psi.ClojureTypes.*
+import org.intellij.clojure.util.*
 import java.io.DataInput
 import java.io.DataOutput
 
 /**
  * @author gregsh
  */
-val VERSION = 204
+val VERSION = 206
 
 val NS_INDEX = ID.create<String, Unit>("clojure.ns")
 val DEF_INDEX = ID.create<String, Unit>("clojure.def")
 val DEF_FQN_INDEX = ID.create<String, Unit>("clojure.def.fqn")
 val KEYWORD_INDEX = ID.create<String, Unit>("clojure.keyword")
 val KEYWORD_FQN_INDEX = ID.create<String, Unit>("clojure.keyword.fqn")
+val DEF_INFO_INDEX = ID.create<String, ClojureDefInfo>("clojure.def.info")
+val KEYWORD_PREFIX_INDEX = ID.create<String, List<String>>("clojure.keyword.prefix")
+val DEF_PREFIX_INDEX = ID.create<String, List<String>>("clojure.def.prefix")
 
 class ClojureNSIndex : ClojureUnitIndex() {
   override fun getName(): ID<String, Unit> = NS_INDEX
-  override fun index(file: CFile): MutableMap<String, Unit> {
-    val result = mutableMapOf(file.namespace to Unit)
-    file.defs().filter { it.def!!.type == "ns" }.forEach {
-      result[it.def!!.name] = Unit
-    }
-    return result
-  }
+  override fun index(data: ClojureIndexData) = data.namespaces.associateWith { Unit }
 }
 
 class ClojureDefIndex : ClojureUnitIndex() {
   override fun getName(): ID<String, Unit> = DEF_INDEX
-  override fun index(file: CFile): MutableMap<String, Unit> {
-    return file.defs().filter { it.def!!.type != "ns" }. map { it.def!!.name }.toMap { Unit }
-  }
+  override fun index(data: ClojureIndexData) = data.defs.associateWith { Unit }
 }
 
 class ClojureDefFqnIndex : ClojureUnitIndex() {
   override fun getName(): ID<String, Unit> = DEF_FQN_INDEX
-  override fun index(file: CFile): MutableMap<String, Unit> {
-    return file.defs().filter { it.def!!.type != "ns" }.map { it.def!!.qualifiedName }.toMap { Unit }
-  }
+  override fun index(data: ClojureIndexData) = data.defFqns.associateWith { Unit }
 }
 
 class ClojureKeywordIndex : ClojureUnitIndex() {
   override fun getName(): ID<String, Unit> = KEYWORD_INDEX
-  override fun index(file: CFile): MutableMap<String, Unit> {
-    return file.cljTraverser().traverse()
-        .filter(CKeyword::class).map { it.name }.toMap { Unit }
-  }
+  override fun index(data: ClojureIndexData) = data.keywords.associateWith { Unit }
 }
 
 class ClojureKeywordFqnIndex : ClojureUnitIndex() {
   override fun getName(): ID<String, Unit> = KEYWORD_FQN_INDEX
-  override fun index(file: CFile): MutableMap<String, Unit> {
-    return file.cljTraverser().traverse()
-        .filter(CKeyword::class).map { it.qualifiedName }.toMap { Unit }
+  override fun index(data: ClojureIndexData) = data.keywordFqns.associateWith { Unit }
+}
+
+class ClojureDefInfoIndex : ClojureIndexBase<ClojureDefInfo>() {
+  override fun getName(): ID<String, ClojureDefInfo> = DEF_INFO_INDEX
+  override fun index(data: ClojureIndexData) = data.defInfos
+  override fun readValue(input: DataInput) = ClojureDefInfo(
+      IOUtil.readUTF(input),
+      DataInputOutputUtil.readINT(input),
+      input.readBoolean(),
+      (1..DataInputOutputUtil.readINT(input)).map { DataInputOutputUtil.readINT(input).let { if ((it and 1) == 0) it shr 1 else -(it shr 1) - 1 } })
+
+  override fun writeValue(output: DataOutput, value: ClojureDefInfo) {
+    IOUtil.writeUTF(output, value.type)
+    DataInputOutputUtil.writeINT(output, value.offset)
+    output.writeBoolean(value.private)
+    DataInputOutputUtil.writeINT(output, value.arities.size)
+    value.arities.forEach { DataInputOutputUtil.writeINT(output, if (it >= 0) it shl 1 else ((-it - 1) shl 1) or 1) }
+  }
+}
+
+class ClojureKeywordPrefixIndex : ClojurePrefixIndex() {
+  override fun getName(): ID<String, List<String>> = KEYWORD_PREFIX_INDEX
+  override fun fqns(data: ClojureIndexData) = data.keywordFqns
+}
+
+class ClojureDefPrefixIndex : ClojurePrefixIndex() {
+  override fun getName(): ID<String, List<String>> = DEF_PREFIX_INDEX
+  override fun fqns(data: ClojureIndexData) = data.defFqns
+}
+
+/**
+ * Qualified names of a file keyed by the first one or two chars typed for every word in both the name
+ * and the namespace, see [wordStartKeys], so completion with middle matching reads only the names
+ * starting a word with the typed chars.
+ */
+abstract class ClojurePrefixIndex : ClojureIndexBase<List<String>>() {
+  abstract fun fqns(data: ClojureIndexData): Set<String>
+
+  override fun index(data: ClojureIndexData): Map<String, List<String>> {
+    val result = HashMap<String, MutableList<String>>()
+    val keys = HashSet<String>()
+    fqns(data).forEach { fqn ->
+      keys.clear()
+      wordStartKeys(fqn, keys).forEach { result.getOrPut(it) { ArrayList() }.add(fqn) }
+    }
+    return result
+  }
+
+  override fun readValue(input: DataInput) = (1..DataInputOutputUtil.readINT(input)).map { IOUtil.readUTF(input) }
+
+  override fun writeValue(output: DataOutput, value: List<String>) {
+    DataInputOutputUtil.writeINT(output, value.size)
+    value.forEach { IOUtil.writeUTF(output, it) }
+  }
+}
+
+/** the first two chars of [s] if they are both typed in a word, the first char otherwise */
+internal fun prefixKey(s: String) = when {
+  s.isEmpty() -> ""
+  s.length > 1 && s[1].isLetterOrDigit() -> s.substring(0, 2).toLowerCase()
+  else -> s.substring(0, 1).toLowerCase()
+}
+
+/**
+ * [prefixKey] of the name, the namespace and every word after `-`, `.`, `/` and alike or at a camel hump.
+ * A word start also pairs with the start of every next word as camel hump matching skips words,
+ * e.g. `trim-newline` has `t`, `tr`, `tn`, `n` and `ne` among others.
+ */
+internal fun <C : MutableCollection<String>> wordStartKeys(s: String, result: C): C {
+  val starts = s.indices.filter { i ->
+    val c = s[i]
+    val prev = if (i > 0) s[i - 1] else '/'
+    prev == '/' && c != '/' ||
+        c.isLetterOrDigit() && !prev.isLetterOrDigit() ||
+        c.isUpperCase() && prev.isLowerCase()
+  }
+  for ((n, i) in starts.withIndex()) {
+    val c = s[i].toLowerCase()
+    result.add(c.toString())
+    if (i + 1 < s.length && s[i + 1].isLetterOrDigit()) result.add("$c${s[i + 1].toLowerCase()}")
+    for (j in n + 1 until starts.size) result.add("$c${s[starts[j]].toLowerCase()}")
   }
+  return result
 }
 
+/**
+ * The first def of a qualified name in a file.
+ * [arities] are fixed arg counts, `-n-1` for a variadic prototype with `n` fixed args.
+ */
+data class ClojureDefInfo(
+    val type: String,
+    val offset: Int,
+    val private: Boolean,
+    val arities: List<Int>)
+
+internal fun arityOf(argCount: Int, ampIndex: Int) = if (ampIndex < 0) argCount else -ampIndex - 1
+
+/**
+ * Namespaces, defs and keywords of a file collected in one pass
+ * and shared by all the indexes via [FileContent] user data.
+ */
+class ClojureIndexData(
+    val namespaces: Set<String>,
+    val defs: Set<String>,
+    val defFqns: Set<String>,
+    val keywords: Set<String>,
+    val keywordFqns: Set<String>,
+    val defInfos: Map<String, ClojureDefInfo>)
+
+private val INDEX_DATA_KEY = Key.create<ClojureIndexData>("clojure.index.data")
+
+/** namespaces, defs and keywords are read from the lexer tokens, the index content is slightly less precise */
+private val isLexerIndexing: Boolean get() = Registry.`is`("clojure.index.lexer", false)
+private const val LEXER_INDEXING_VERSION = 1000
+
+internal fun indexData(content: FileContent): ClojureIndexData =
+    content.getUserData(INDEX_DATA_KEY) ?: run {
+      if (isLexerIndexing) {
+        val language = if (FileUtilRt.getExtension(content.fileName) == ClojureConstants.CLJS) ClojureScriptLanguage else ClojureLanguage
+        ClojureLexerIndexer(language).index(content.contentAsText)
+      }
+      else indexData(content.psiFile as CFile)
+    }.also {
+      content.putUserData(INDEX_DATA_KEY, it)
+    }
+
+internal fun indexData(file: CFile): ClojureIndexData {
+  val namespaces = linkedSetOf(file.namespace)
+  val defs = LinkedHashSet<String>()
+  val defFqns = LinkedHashSet<String>()
+  val defInfos = LinkedHashMap<String, ClojureDefInfo>()
+  file.defs().forEach {
+    val def = it.def!!
+    if (def.type == "ns") {
+      namespaces.add(def.name)
+    }
+    else {
+      defs.add(def.name)
+      if (defFqns.add(def.qualifiedName)) {
+        val private = def.type == "defn-" || (def as? Def)?.meta?.containsKey(PRIVATE_META) ?: false
+        val arities = (def as? Def)?.protos?.map { p -> arityOf(p.args.size, p.args.indexOfFirst { a -> a.name == "&" }) }
+        defInfos[def.qualifiedName] = ClojureDefInfo(def.type, it.textOffset, private, arities?.sorted() ?: emptyList())
+      }
+    }
+  }
+  val keywords = LinkedHashSet<String>()
+  val keywordFqns = LinkedHashSet<String>()
+  file.cljTraverser().traverse().filter(CKeyword::class).forEach {
+    keywords.add(it.name)
+    keywordFqns.add(it.qualifiedName)
+  }
+  return ClojureIndexData(namespaces, defs, defFqns, keywords, keywordFqns, defInfos)
+}
+
+/**
+ * Reads the PSI-free approximation of [ClojureIndexData] from the token stream:
+ * ns names, def-alike and OO method names, keywords with `::alias/kw` resolved via the ns forms read so far.
+ */
+internal class ClojureLexerIndexer(language: Language) {
+  private class Sym(val qualifier: String?, val name: String, val offset: Int)
+
+  private class Frame(val parent: Frame?, val type: IElementType,
+                      val quoted: Boolean, val skip: Boolean, val rc: Boolean, val mapNs: String?) {
+    var count = 0
+    var head: String? = null
+    var headCore = false
+    var headKeyword: String? = null
+    var name: String? = null
+    var methodNs: String? = null
+    var lib: String? = null
+    var alias: String? = null
+    var expectAlias = false
+    var ampIndex = -1
+    var metaPrivate = false
+    var defFqn: String? = null
+    var defType: String? = null
+    var defOffset = -1
+    var defVecSeen = false
+    val arities = ArrayList<Int>(0)
+
+    val isCall: Boolean get() = type == C_PAREN1 && !rc
+  }
+
+  private val lexer = ClojureLexer(language)
+  private val namespaces = LinkedHashSet<String>()
+  private val defs = LinkedHashSet<String>()
+  private val defFqns = LinkedHashSet<String>()
+  private val keywords = LinkedHashSet<String>()
+  private val keywordFqns = LinkedHashSet<String>()
+  private val defInfos = LinkedHashMap<String, ClojureDefInfo>()
+  private val aliases = HashMap<String, String>()
+  private var fileNS: String? = null
+  private val currentNS: String get() = fileNS ?: ClojureConstants.NS_USER
+
+  private var frame: Frame? = null
+  // prefixes of the next form
+  private var quoted = false
+  private var skip = false
+  private var rc = false
+  private var mapNs: String? = null
+
+  fun index(text: CharSequence): ClojureIndexData {
+    lexer.start(text)
+    if (lexer.tokenType.wsOrComment()) advance()
+    while (true) {
+      when (lexer.tokenType ?: break) {
+        C_PAREN1, C_BRACKET1, C_BRACE1 -> openFrame()
+        C_PAREN2, C_BRACKET2, C_BRACE2 -> closeFrame()
+        C_SYM, C_BOOL, C_NIL -> form(readSymbol())
+        C_COLON, C_COLONCOLON -> readKeyword()
+        C_DOT, C_DOTDASH -> {
+          if (advance() && ClojureTokens.SYM_ALIKE.contains(lexer.tokenType)) readSymbol()
+          form(null)
+        }
+        C_QUOTE, C_SYNTAX_QUOTE, C_TILDE, C_TILDE_AT -> { quoted = true; advance() }
+        C_HAT, C_SHARP_HAT, C_SHARP_COMMENT -> { skip = true; advance() }
+        C_SHARP_QMARK, C_SHARP_QMARK_AT -> { rc = true; advance() }
+        C_SHARP -> if (advance() && ClojureTokens.SYM_ALIKE.contains(lexer.tokenType)) readSymbol() // tagged literal
+        C_SHARP_NS -> readMapNs()
+        in ClojureTokens.LITERALS, C_SLASH -> { form(null); advance() }
+        else -> advance()
+      }
+    }
+    while (frame != null) {
+      frame = frame!!.also { addDefInfo(it) }.parent
+    }
+    namespaces.add(currentNS)
+    return ClojureIndexData(namespaces, defs, defFqns, keywords, keywordFqns, defInfos)
+  }
+
+  /** returns true if the next significant token immediately follows the current one */
+  private fun advance(): Boolean {
+    val prevEnd = lexer.tokenEnd
+    do lexer.advance() while (lexer.tokenType.wsOrComment())
+    return lexer.tokenStart == prevEnd
+  }
+
+  private fun readSymbol(): Sym {
+    var qualifier: String? = null
+    var name = lexer.tokenText
+    var offset = lexer.tokenStart
+    var adjacent = advance()
+    if (adjacent && lexer.tokenType == C_SLASH) {
+      adjacent = advance() && ClojureTokens.SYM_ALIKE.contains(lexer.tokenType)
+      if (adjacent) {
+        qualifier = name
+        name = lexer.tokenText
+        offset = lexer.tokenStart
+        adjacent = advance()
+      }
+    }
+    if (adjacent && lexer.tokenType == C_DOT) advance()
+    return Sym(qualifier, name, offset)
+  }
+
+  private fun readKeyword() {
+    val userNs = lexer.tokenType == C_COLONCOLON
+    if (!advance() || !ClojureTokens.SYM_ALIKE.contains(lexer.tokenType)) return form(null)
+    val sym = readSymbol()
+    val ns = when {
+      sym.qualifier != null && userNs -> aliases[sym.qualifier] ?: ""
+      sym.qualifier != null -> sym.qualifier
+      userNs -> currentNS
+      else -> frame?.mapNs ?: ""
+    }
+    keywords.add(sym.name)
+    keywordFqns.add(sym.name.withNamespace(ns))
+    if (sym.name == "private" && sym.qualifier == null && !userNs) {
+      // ^:private and ^{:private true} before the def name
+      val f = frame
+      val target = if (skip) f else f?.takeIf { it.skip }?.parent
+      if (target != null && target.count <= 1) target.metaPrivate = true
+    }
+    form(null, sym.name)
+  }
+
+  private fun readMapNs() {
+    advance()
+    val userNs = lexer.tokenType == C_COLONCOLON
+    if (!userNs && lexer.tokenType != C_COLON) return
+    val name = if (advance() && ClojureTokens.SYM_ALIKE.contains(lexer.tokenType)) readSymbol().name else null
+    mapNs = when {
+      name != null && userNs -> aliases[name] ?: ""
+      name != null -> name
+      else -> currentNS
+    }
+  }
+
+  private fun openFrame() {
+    val type = lexer.tokenType!!
+    frame = Frame(frame, type, quoted, skip, rc, if (type == C_BRACE1) mapNs else null)
+    quoted = false
+    skip = false
+    rc = false
+    mapNs = null
+    advance()
+  }
+
+  private fun closeFrame() {
+    advance()
+    val f = frame ?: return
+    frame = f.parent
+    addDefInfo(f)
+    val parent = f.parent
+    if (f.type == C_BRACKET1 && !f.skip && parent != null) {
+      // the first vector of a def and the vectors starting its child lists, see RoleHelper.processPrototypes
+      val arity = arityOf(f.count, f.ampIndex)
+      if (parent.defFqn != null && !parent.defVecSeen) {
+        parent.defVecSeen = true
+        parent.arities.add(arity)
+      }
+      else if (parent.isCall && parent.count == 0) {
+        parent.parent?.takeIf { it.defFqn != null }?.arities?.add(arity)
+      }
+    }
+    val lib = f.lib
+    val alias = f.alias
+    if (lib != null && alias != null && isRequire(f)) {
+      val prefix = f.parent?.takeIf { it.isCall && it.headKeyword == null && !isRequireHead(it) }?.head
+      aliases[alias] = lib.withPackage(prefix ?: "")
+    }
+    if (!f.skip) frame?.let { formIn(it, null, null, f.quoted) }
+  }
+
+  private fun form(sym: Sym?, keyword: String? = null) {
+    val skip = skip
+    val quoted = quoted
+    this.skip = false
+    this.quoted = false
+    this.rc = false
+    this.mapNs = null
+    if (skip) return
+    formIn(frame ?: return, sym, keyword, quoted)
+  }
+
+  private fun formIn(f: Frame, sym: Sym?, keyword: String?, quoted: Boolean) {
+    val pos = f.count++
+    if (f.isCall) {
+      when {
+        pos == 0 -> {
+          f.headKeyword = keyword
+          if (sym == null) return
+          f.head = sym.name
+          // unknown qualifiers are treated as core ones, the same way role assignment does
+          f.headCore = sym.qualifier?.let { aliases[it] }?.let { ClojureConstants.CORE_NAMESPACES.contains(it) } ?: true
+          val methodNs = f.parent?.takeIf { it.isCall }?.methodNs ?: return
+          addDef(f, sym, methodNs, "method")
+        }
+        pos == 1 && sym != null -> nameIn(f, sym, quoted)
+        pos == 2 && sym != null && quoted && f.head == "alias" && f.headCore -> {
+          f.name?.let { aliases[it] = sym.name }
+        }
+      }
+    }
+    else if (f.type == C_BRACKET1) {
+      if (f.ampIndex < 0 && sym?.name == "&") f.ampIndex = pos
+      when {
+        pos == 0 -> f.lib = sym?.takeIf { it.qualifier == null }?.name
+        f.expectAlias -> { f.alias = sym?.name; f.expectAlias = false }
+        keyword == "as" -> f.expectAlias = true
+      }
+    }
+  }
+
+  private fun nameIn(f: Frame, sym: Sym, quoted: Boolean) {
+    val head = f.head ?: return
+    f.name = sym.name
+    if (!quoted && head != "defmethod" &&
+        (ClojureConstants.DEF_ALIKE_SYMBOLS.contains(head) && f.headCore ||
+            head.startsWith("def") && head != "default" && head != "def")) {
+      val ns = sym.qualifier?.let { aliases[it] } ?: currentNS
+      addDef(f, sym, ns, head)
+      if (ClojureConstants.OO_ALIKE_SYMBOLS.contains(head)) {
+        f.methodNs = if (head == "defprotocol") currentNS else sym.name.withNamespace(ns)
+      }
+    }
+    else if (f.headCore && (head == "ns" && !quoted || quoted && (head == "in-ns" || head == "create-ns"))) {
+      namespaces.add(sym.name)
+      if (fileNS == null && head != "create-ns" && f.parent == null) fileNS = sym.name
+    }
+  }
+
+  private fun addDef(f: Frame, sym: Sym, ns: String, type: String) {
+    val fqn = sym.name.withNamespace(ns)
+    defs.add(sym.name)
+    if (!defFqns.add(fqn)) return
+    f.defFqn = fqn
+    f.defType = type
+    f.defOffset = sym.offset
+  }
+
+  private fun addDefInfo(f: Frame) {
+    val fqn = f.defFqn ?: return
+    val type = f.defType!!
+    defInfos[fqn] = ClojureDefInfo(type, f.defOffset, type == "defn-" || f.metaPrivate, f.arities.sorted())
+  }
+
+  private fun isRequireHead(f: Frame) = f.headCore && REQUIRE_ALIKE.contains(f.head)
+
+  private fun isRequire(f: Frame): Boolean {
+    var cur = f.parent
+    while (cur != null) {
+      if (cur.isCall && isRequireHead(cur)) return true
+      cur = cur.parent
+    }
+    return false
+  }
+}
+
+private val REQUIRE_ALIKE = setOf("ns", "require", "require-macros", "use")
+
 abstract class ClojureUnitIndex : ClojureIndexBase<Unit>() {
   override fun readValue(input: DataInput) = Unit
   override fun writeValue(output: DataOutput, value: Unit) = Unit
@@ -92,19 +500,19 @@ abstract class ClojureUnitIndex : ClojureIndexBase<Unit>() {
 //}
 
 abstract class ClojureIndexBase<V> : FileBasedIndexExtension<String, V>() {
-  override fun getVersion(): Int = VERSION
+  override fun getVersion(): Int = if (isLexerIndexing) VERSION + LEXER_INDEXING_VERSION else VERSION
   override fun getKeyDescriptor(): EnumeratorStringDescriptor = EnumeratorStringDescriptor.INSTANCE
   override fun getInputFilter(): FileBasedIndex.InputFilter = DefaultFileTypeSpecificInputFilter (ClojureFileType)
   override fun dependsOnFileContent(): Boolean = true
 
-  override fun getIndexer(): DataIndexer<String, V, FileContent> = DataIndexer { index(it.psiFile as CFile) }
+  override fun getIndexer(): DataIndexer<String, V, FileContent> = DataIndexer { index(indexData(it)) }
 
   override fun getValueExternalizer(): DataExternalizer<V> = object : DataExternalizer<V> {
     override fun read(input: DataInput): V = readValue(input)
     override fun save(output: DataOutput, value: V) = writeValue(output, value)
   }
 
-  abstract fun index(file: CFile): MutableMap<String, V>
+  abstract fun index(data: ClojureIndexData): Map<String, V>
   abstract fun readValue(input: DataInput): V
   abstract fun writeValue(output: DataOutput, value: V): Unit
 
@@ -21,12 +21,19 @@ import com.intellij.find.findUsages.FindUsagesHandler
 import com.intellij.find.findUsages.FindUsagesHandlerFactory
 import com.intellij.icons.AllIcons
 import com.intellij.lang.documentation.DocumentationProviderEx
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationInfo
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.PathManager
 import com.intellij.openapi.components.ServiceManager
+import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Disposer
 import com.intellij.openapi.util.NotNullLazyKey
 import com.intellij.openapi.util.io.FileUtil
 import com.intellij.openapi.util.text.StringUtil
+import com.intellij.openapi.vfs.VfsUtilCore
 import com.intellij.pom.PomTargetPsiElement
 import com.intellij.psi.*
 import com.intellij.psi.impl.FakePsiElement
@@ -40,14 +47,25 @@ import com.intellij.util.*
 import com.intellij.util.containers.ContainerUtil
 import com.intellij.util.containers.JBIterable
 import com.intellij.util.containers.JBTreeTraverser
+import com.intellij.util.io.DataExternalizer
+import com.intellij.util.io.DataInputOutputUtil
+import com.intellij.util.io.EnumeratorStringDescriptor
+import com.intellij.util.io.IOUtil
+import com.intellij.util.io.PersistentHashMap
 import org.intellij.clojure.ClojureConstants
 import org.intellij.clojure.psi.impl.ClojureDefinitionService
 import org.intellij.clojure.util.*
 import org.jetbrains.org.objectweb.asm.*
 import org.jetbrains.org.objectweb.asm.signature.SignatureReader
 import org.jetbrains.org.objectweb.asm.signature.SignatureVisitor
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.File
+import java.io.IOException
 import java.io.InputStream
 import java.lang.reflect.Modifier
+import java.nio.file.Files
+import java.nio.file.Paths
 import java.util.*
 import java.util.concurrent.ConcurrentMap
 
@@ -366,23 +384,41 @@ abstract class JavaHelper {
                                   name: String?,
                                   paramCount: Int,
                                   vararg paramTypes: String): List<NavigatablePsiElement> {
-      return superclasses(className)
-          .flatten {
-            findDeclaredClassMethods(it, scope, name, paramCount, paramTypes, className)
-          }
+      val table = memberTable(className) ?: return emptyList()
+      val methods = when {
+        name == "*" -> table.methods
+        name == null -> null
+        paramCount >= 0 -> table.methodsByArity[name to paramCount]
+        else -> table.methodsByName[name]
+      } ?: return emptyList()
+      return methods.jbIt()
+          .filter { acceptsMethod(it, scope) && acceptsMethod(it, paramCount, *paramTypes) }
+          .map { cached(it.name + it.signature + className, it) }
           .toList()
     }
 
     override fun findClassFields(className: String?,
                                  scope: Scope,
                                  name: String?): List<NavigatablePsiElement> {
-      return superclasses(className)
-          .flatten {
-            findDeclaredClassFields(it, scope, name, className)
-          }
+      val table = memberTable(className) ?: return emptyList()
+      val fields = when (name) {
+        "*" -> table.fields
+        null -> null
+        else -> table.fieldsByName[name]
+      } ?: return emptyList()
+      return fields.jbIt()
+          .filter { acceptsField(it, scope) }
+          .map { cached(it.name + it.signature + className, it) }
           .toList()
     }
 
+    private fun memberTable(className: String?): MemberTable? {
+      val info = findClass(className)?.delegate as? ClassInfo ?: return null
+      return info.memberTable ?: MemberTable(superclasses(className)
+          .map { it.delegate as? ClassInfo }.notNulls().toList())
+          .also { info.memberTable = it }
+    }
+
     fun findDeclaredClassMethods(it: MyElement<*>,
                                  scope: Scope,
                                  name: String?,
@@ -633,26 +669,33 @@ abstract class JavaHelper {
       try {
         var url: String? = null
         var stream: InputStream? = null
+        var cacheKey: String? = null
         val lastDot = className.lastIndexOf('.')
         val pkgName = if (lastDot == -1) "" else className.substring(0, lastDot).replace('.', '/')
         val clzName = className.substring(lastDot + 1) + ".class"
         for (psiFile in FilenameIndex.getFilesByName(project, clzName, GlobalSearchScope.allScope(project))) {
           url = "jar:file://" + psiFile.virtualFile.presentableUrl
           if (url.endsWith("!/$pkgName/$clzName")) {
-            stream = try { psiFile.virtualFile.inputStream } catch (e: Exception) { null }
+            val file = psiFile.virtualFile
+            cacheKey = (VfsUtilCore.getVirtualFileForJar(file) ?: file).let { "$url@${it.timeStamp}:${it.length}" }
+            AsmClassCache[cacheKey]?.let { return it }
+            stream = try { file.inputStream } catch (e: Exception) { null }
             break
           }
         }
         if (stream == null) {
           val bundledUrl = JavaHelper::class.java.classLoader.getResource("$pkgName/$clzName")
-          stream = try { bundledUrl?.openStream() } catch (e: Exception) { null }
           url = bundledUrl?.toExternalForm()
+          cacheKey = url?.let { "$it@${ApplicationInfo.getInstance().build.asString()}" }
+          AsmClassCache[cacheKey]?.let { return it }
+          stream = try { bundledUrl?.openStream() } catch (e: Exception) { null }
         }
         if (url == null || stream == null) return null
         val bytes = FileUtil.loadBytes(stream)
         stream.close()
         val info = ClassInfo(className, url)
         processClassBytes(info, bytes)
+        if (cacheKey != null) AsmClassCache[cacheKey] = info
         return info
       }
       catch (e: Exception) {
@@ -796,6 +839,155 @@ abstract class JavaHelper {
     override fun toString() = delegate.toString()
   }
 
+  /** members of a class and all its supers in lookup order, by name and by name and arity */
+  private class MemberTable(classes: List<ClassInfo>) {
+    val methods: List<MethodInfo> = classes.flatMap { it.methods }
+    val fields: List<FieldInfo> = classes.flatMap { it.fields }
+    val methodsByName: Map<String, List<MethodInfo>> = methods.groupBy { it.name }
+    val methodsByArity: Map<Pair<String, Int>, List<MethodInfo>> = methods.groupBy { it.name to it.types.size - 1 }
+    val fieldsByName: Map<String, List<FieldInfo>> = fields.groupBy { it.name }
+  }
+
+  /** parent of the plugin-wide resources, disposed on the application exit and the plugin unload */
+  class PluginDisposable : Disposable {
+    override fun dispose() = Unit
+  }
+
+  /** parsed classes by class file url and stamp, shared by all the projects and kept between restarts */
+  private object AsmClassCache {
+    private const val VERSION = 2
+    private val LOG = Logger.getInstance(AsmClassCache::class.java)
+    private val file = Paths.get(PathManager.getSystemPath(), "clojure", "asm-classes.$VERSION")
+    private val buildFile = Paths.get(PathManager.getSystemPath(), "clojure", "asm-classes.$VERSION.build")
+    private val map: PersistentHashMap<String, ClassInfo>? by lazy { open() }
+
+    private fun open(): PersistentHashMap<String, ClassInfo>? {
+      fun create() = PersistentHashMap(file, EnumeratorStringDescriptor.INSTANCE, ClassInfoExternalizer)
+      // the bundled classes are keyed by the IDE build, start afresh on update
+      val build = ApplicationInfo.getInstance().build.asString()
+      val sameBuild = try { Files.exists(buildFile) && String(Files.readAllBytes(buildFile)) == build } catch (e: IOException) { false }
+      if (!sameBuild) {
+        PersistentHashMap.deleteFilesStartingWith(file.toFile())
+        for (old in 1 until VERSION) {
+          PersistentHashMap.deleteFilesStartingWith(Paths.get(PathManager.getSystemPath(), "clojure", "asm-classes.$old").toFile())
+        }
+      }
+      var map = try {
+        create()
+      }
+      catch (e: IOException) {
+        LOG.info("Recreating $file", e)
+        PersistentHashMap.deleteFilesStartingWith(file.toFile())
+        try { create() } catch (e: IOException) { LOG.warn(e); return null }
+      }
+      try {
+        if (!sameBuild) FileUtil.writeToFile(buildFile.toFile(), build)
+        map = compact(map, ::create)
+      }
+      catch (e: IOException) {
+        LOG.warn(e)
+      }
+      val parent = ServiceManager.getService(PluginDisposable::class.java) ?: ApplicationManager.getApplication()
+      val result = map
+      Disposer.register(parent, Disposable {
+        try { result.close() } catch (e: IOException) { LOG.warn(e) }
+      })
+      return result
+    }
+
+    /** drops the classes of the jars changed or gone since, the storage is recreated if most of it is stale */
+    private fun compact(map: PersistentHashMap<String, ClassInfo>,
+                        create: () -> PersistentHashMap<String, ClassInfo>): PersistentHashMap<String, ClassInfo> {
+      val keys = map.allKeysWithExistingMapping
+      val stale = keys.filter { isStale(it) }
+      if (stale.isEmpty()) return map
+      if (stale.size * 2 < keys.size) {
+        stale.forEach { map.remove(it) }
+        return map
+      }
+      LOG.info("Recreating $file: ${stale.size} of ${keys.size} classes are stale")
+      map.close()
+      PersistentHashMap.deleteFilesStartingWith(file.toFile())
+      return create()
+    }
+
+    /** jar classes are keyed by "jar:file://jar-path!/class-path@timestamp:length" */
+    private fun isStale(key: String): Boolean {
+      if (!key.startsWith("jar:file://")) return false
+      val jarPath = key.substring("jar:file://".length).substringBefore("!/")
+      val stamp = key.substringAfterLast('@').split(':')
+      val jar = File(jarPath)
+      return stamp.size != 2 || !jar.exists() ||
+          stamp[0] != jar.lastModified().toString() || stamp[1] != jar.length().toString()
+    }
+
+    operator fun get(key: String?): ClassInfo? {
+      val map = map ?: return null
+      return try { map.get(key ?: return null) } catch (e: IOException) { LOG.warn(e); null }
+    }
+
+    operator fun set(key: String, info: ClassInfo) {
+      val map = map ?: return
+      try { map.put(key, info) } catch (e: IOException) { LOG.warn(e) }
+    }
+  }
+
+  private object ClassInfoExternalizer : DataExternalizer<ClassInfo> {
+    override fun save(out: DataOutput, info: ClassInfo) {
+      IOUtil.writeUTF(out, info.name)
+      IOUtil.writeUTF(out, info.url)
+      IOUtil.writeUTF(out, info.superClass)
+      writeStrings(out, info.interfaces)
+      writeStrings(out, info.annotations)
+      DataInputOutputUtil.writeINT(out, info.methods.size)
+      for (o in info.methods) {
+        IOUtil.writeUTF(out, o.name)
+        DataInputOutputUtil.writeINT(out, o.modifiers)
+        IOUtil.writeUTF(out, o.signature)
+        writeStrings(out, o.annotations)
+        writeStrings(out, o.types)
+      }
+      DataInputOutputUtil.writeINT(out, info.fields.size)
+      for (o in info.fields) {
+        IOUtil.writeUTF(out, o.name)
+        DataInputOutputUtil.writeINT(out, o.modifiers)
+        IOUtil.writeUTF(out, o.type)
+        IOUtil.writeUTF(out, o.signature)
+        writeStrings(out, o.annotations)
+      }
+    }
+
+    override fun read(input: DataInput): ClassInfo {
+      val info = ClassInfo(IOUtil.readUTF(input), IOUtil.readUTF(input))
+      info.superClass = IOUtil.readUTF(input)
+      readStrings(input, info.interfaces)
+      readStrings(input, info.annotations)
+      repeat(DataInputOutputUtil.readINT(input)) {
+        val o = MethodInfo(IOUtil.readUTF(input), info, DataInputOutputUtil.readINT(input), IOUtil.readUTF(input))
+        readStrings(input, o.annotations)
+        readStrings(input, o.types)
+        info.methods.add(o)
+      }
+      repeat(DataInputOutputUtil.readINT(input)) {
+        val name = IOUtil.readUTF(input)
+        val modifiers = DataInputOutputUtil.readINT(input)
+        val o = FieldInfo(name, info, modifiers, IOUtil.readUTF(input), IOUtil.readUTF(input))
+        readStrings(input, o.annotations)
+        info.fields.add(o)
+      }
+      return info
+    }
+
+    private fun writeStrings(out: DataOutput, list: List<String>) {
+      DataInputOutputUtil.writeINT(out, list.size)
+      list.forEach { IOUtil.writeUTF(out, it) }
+    }
+
+    private fun readStrings(input: DataInput, list: MutableList<String>) {
+      repeat(DataInputOutputUtil.readINT(input)) { list.add(IOUtil.readUTF(input)) }
+    }
+  }
+
   private class PackageInfo(val name: String, val url: String) {
     override fun toString() = "Package {$name}"
   }
@@ -806,6 +998,8 @@ abstract class JavaHelper {
     val annotations: MutableList<String> = SmartList()
     val methods: MutableList<MethodInfo> = SmartList()
     val fields: MutableList<FieldInfo> = SmartList()
+    /** members of the class and its supers, not persisted and dropped along with the class element */
+    @Volatile var memberTable: MemberTable? = null
 
     override fun toString() = "Class {$name}"
   }
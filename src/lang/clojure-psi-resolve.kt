@@ -20,20 +20,22 @@ package org.intellij.clojure.psi.impl
 import com.intellij.lang.Language
 import com.intellij.openapi.components.ServiceManager
 import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.Key
 import com.intellij.openapi.util.RecursionManager
 import com.intellij.openapi.util.TextRange
+import com.intellij.openapi.util.registry.Registry
 import com.intellij.openapi.util.text.StringUtil
+import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.pom.PomTargetPsiElement
 import com.intellij.psi.*
-import com.intellij.psi.impl.AnyPsiChangeListener
-import com.intellij.psi.impl.PsiManagerImpl
 import com.intellij.psi.impl.source.resolve.ResolveCache
 import com.intellij.psi.scope.PsiScopeProcessor
+import com.intellij.psi.tree.IElementType
+import com.intellij.psi.util.PsiModificationTracker
 import com.intellij.psi.util.PsiUtilCore
 import com.intellij.util.ArrayUtil
-import com.intellij.util.ConcurrencyUtil
 import com.intellij.util.containers.ContainerUtil
 import com.intellij.util.containers.JBIterable
 import com.intellij.util.containers.JBIterator
@@ -49,6 +51,9 @@ import org.intellij.clojure.psi.*
 import org.intellij.clojure.psi.stubs.CListStub
 import org.intellij.clojure.psi.stubs.CPrototypeStub
 import org.intellij.clojure.util.*
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 val RENAMED_KEY: Key<String> = Key.create("RENAMED_KEY")
 val ALIAS_KEY: Key<String> = Key.create("ALIAS_KEY")
@@ -60,28 +65,149 @@ interface NameHint {
   fun getName(state: ResolveState): String?
 }
 
+/**
+ * Expression types per file. Types of a file are dropped when the file changes
+ * or when a namespace they were inferred from changes, other PSI changes drop all the types.
+ * The `clojure.type.cache.size` registry key limits the number of types kept per file.
+ */
 class ClojureTypeCache(project: Project) {
-  val map = ContainerUtil.createConcurrentWeakMap<CForm, Any>()
+  private val psiManager = PsiManager.getInstance(project)
+  private val dumbService = DumbService.getInstance(project)
+  private val files = ContainerUtil.createConcurrentWeakMap<PsiFile, FileTypes>()
+  private val fileNamespaces = ContainerUtil.createConcurrentWeakMap<VirtualFile, String>()
+  private val changedFiles = ContainerUtil.newConcurrentSet<VirtualFile>()
+  private val nsCounts = ConcurrentHashMap<String, Long>()
+  private val counter = AtomicLong()
+  private val hits = AtomicLong()
+  private val misses = AtomicLong()
+  private val collector = ThreadLocal<TypeDeps>()
+
+  val hitCount: Long get() = hits.get()
+  val missCount: Long get() = misses.get()
+
   init {
-    project.messageBus.connect().subscribe(PsiManagerImpl.ANY_PSI_CHANGE_TOPIC, object : AnyPsiChangeListener {
-      override fun afterPsiChanged(isPhysical: Boolean) = Unit
+    psiManager.addPsiTreeChangeListener(object : PsiTreeChangeAdapter() {
+      override fun beforeChildAddition(event: PsiTreeChangeEvent) = changed(event.file)
+      override fun beforeChildRemoval(event: PsiTreeChangeEvent) = changed(event.file)
+      override fun beforeChildReplacement(event: PsiTreeChangeEvent) = changed(event.file)
+      override fun beforeChildMovement(event: PsiTreeChangeEvent) = changed(event.file)
+      override fun beforeChildrenChange(event: PsiTreeChangeEvent) = changed(event.file)
+      override fun beforePropertyChange(event: PsiTreeChangeEvent) = changed(event.file)
+    }, project)
+  }
+
+  private fun changed(file: PsiFile?) {
+    when {
+      file is CFile -> if (file.isPhysical) file.virtualFile?.let { changedFiles.add(it) } else files.remove(file)
+      file != null && !file.isPhysical -> Unit
+      else -> files.clear()
+    }
+  }
+
+  /** namespaces of changed files are read lazily, not from inside PSI events */
+  private fun processChanges() {
+    if (changedFiles.isEmpty()) return
+    val count = counter.incrementAndGet()
+    nsCounts[ANY_NS] = count
+    for (vFile in changedFiles.toList()) {
+      changedFiles.remove(vFile)
+      fileNamespaces.remove(vFile)?.let { nsCounts[it] = count }
+      val file = if (vFile.isValid) psiManager.findFile(vFile) as? CFile else null
+      if (file != null) nsCounts[namespaceOf(file)] = count
+    }
+  }
+
+  private fun namespaceOf(file: CFile) = file.namespace.also { ns -> file.virtualFile?.let { fileNamespaces[it] = ns } }
+
+  private fun nsCount(namespace: String) = nsCounts[namespace] ?: 0L
 
-      override fun beforePsiChanged(isPhysical: Boolean) {
-        map.clear()
+  private fun fileTypes(file: PsiFile): FileTypes {
+    // non-physical files are not stamped on every change, the role state stamp is
+    val stamp = (file as? CFileImpl)?.stateStamp ?: file.modificationStamp
+    val types = files[file]
+    if (types != null && types.stamp == stamp && types.deps.all { (ns, count) -> nsCount(ns) == count }) return types
+    return FileTypes(stamp, Registry.intValue("clojure.type.cache.size", 0)).also { files[file] = it }
+  }
+
+  /** records that the type being computed depends on [target], `null` stands for an unresolved symbol */
+  internal fun dependOn(target: PsiElement?) {
+    val deps = collector.get() ?: return
+    val namespace = when (target) {
+      null -> ANY_NS
+      else -> target.asCTarget?.key?.namespace ?:
+          (target.containingFile as? CFile)?.takeIf { it != deps.file }?.let { namespaceOf(it) } ?: return
+    }
+    deps.namespaces.putIfAbsent(namespace, nsCount(namespace))
+  }
+
+  internal fun getOrCompute(form: CForm, compute: () -> Any?): Any? {
+    processChanges()
+    val file = form.containingFile
+    val outer = collector.get()
+    if (outer != null && outer.file != file) dependOn(form)
+    val types = fileTypes(file)
+    types[form]?.let { type ->
+      hits.incrementAndGet()
+      outer?.namespaces?.let { o -> types.deps.forEach { (ns, count) -> o.putIfAbsent(ns, count) } }
+      return type
+    }
+    misses.incrementAndGet()
+    return RecursionManager.doPreventingRecursion(form, false) {
+      val deps = TypeDeps(file)
+      val stamp = RecursionManager.markStack()
+      collector.set(deps)
+      val type = try {
+        compute() ?: CSymbolReference.NULL_TYPE
       }
-    })
+      finally {
+        collector.set(outer)
+      }
+      outer?.namespaces?.let { o -> deps.namespaces.forEach { (ns, count) -> o.putIfAbsent(ns, count) } }
+      // targets unresolved in dumb mode may resolve after indexing with no namespace change
+      if (!stamp.mayCacheNow() || dumbService.isDumb) type
+      else types.cacheOrGet(form, type, deps.namespaces)
+    }
+  }
+
+  override fun toString() = "ClojureTypeCache(files=${files.size}, hits=$hitCount, misses=$missCount)"
+
+  private class TypeDeps(val file: PsiFile) {
+    val namespaces = HashMap<String, Long>()
+  }
+
+  /** forms are keyed by range and type, the file text is fixed for a [FileTypes] and no PSI is retained */
+  private data class FormKey(val offset: Int, val length: Int, val type: IElementType)
+
+  private class FileTypes(val stamp: Long, limit: Int) {
+    /** namespaces the types depend on with their modification counts */
+    val deps = ConcurrentHashMap<String, Long>()
+    private val map: MutableMap<FormKey, Any> =
+        if (limit <= 0) ConcurrentHashMap()
+        else Collections.synchronizedMap(object : LinkedHashMap<FormKey, Any>(16, 0.75f, true) {
+          override fun removeEldestEntry(eldest: MutableMap.MutableEntry<FormKey, Any>?) = size > limit
+        })
+
+    operator fun get(form: CForm) = map[key(form)]
+
+    fun cacheOrGet(form: CForm, type: Any, from: Map<String, Long>): Any {
+      from.forEach { (ns, count) -> deps.putIfAbsent(ns, count) }
+      return map.putIfAbsent(key(form), type) ?: type
+    }
+
+    private fun key(form: CForm) = form.textRange.let { FormKey(it.startOffset, it.length, form.node.elementType) }
+  }
+
+  companion object {
+    private const val ANY_NS = ""
   }
 }
 
+private val ClojureDefinitionService.typeCache: ClojureTypeCache
+  get() = ServiceManager.getService(project, ClojureTypeCache::class.java)
+
 fun ClojureDefinitionService.exprType(form: CForm?): Any? {
   if (form == null) return null
-  val ourTypeCache = ServiceManager.getService(project, ClojureTypeCache::class.java).map
-  val cached = ourTypeCache[form] ?: RecursionManager.doPreventingRecursion(form, false) {
-    val stamp = RecursionManager.markStack()
-    val type = exprTypeImpl(form) ?: CSymbolReference.NULL_TYPE
-    if (!stamp.mayCacheNow()) type
-    else ConcurrencyUtil.cacheOrGet(ourTypeCache, form, type)
-  }
+  val cached = typeCache.getOrCompute(form) { exprTypeImpl(form) }
   return if (cached === CSymbolReference.NULL_TYPE) null else cached
 }
 
@@ -95,7 +221,9 @@ private fun ClojureDefinitionService.exprTypeImpl(form: CForm): Any? {
         "*in*" -> return ClojureConstants.J_READER
         "*ns*" -> return ClojureConstants.C_NAMESPACE
       }
-      val target = form.reference.resolve() ?: return null
+      val target = form.reference.resolve()
+      typeCache.dependOn(target)
+      if (target == null) return null
       val sourceDef = target.sourceDef
       if (sourceDef != null) {
         return SymKey(sourceDef)
@@ -178,6 +306,38 @@ private fun ClojureDefinitionService.exprTypeImpl(form: CForm): Any? {
   }
 }
 
+private val BATCH_RESOLVE = ThreadLocal<MutableMap<Triple<PsiFile, Dialect, String>, List<Pair<PsiElement, ResolveState>>>>()
+private val BATCH_RESOLVED_KEY: Key<Long> = Key.create("BATCH_RESOLVED_KEY")
+
+/**
+ * Resolves all the symbols under [root] in one ordered pass, the results are left in [ResolveCache].
+ * Symbols with the same name share the lookup in the other files of the namespace.
+ */
+fun resolveAll(root: PsiElement) {
+  val prev = BATCH_RESOLVE.get()
+  if (prev == null) BATCH_RESOLVE.set(HashMap())
+  try {
+    root.cljTraverser().traverse().filter(CSymbol::class).forEach {
+      ProgressManager.checkCanceled()
+      it.reference.multiResolve(false)
+    }
+  }
+  finally {
+    if (prev == null) BATCH_RESOLVE.remove()
+  }
+}
+
+/** resolves the top-level form of [element] with [resolveAll] once per PSI modification */
+fun resolveTopLevelForm(element: PsiElement) {
+  val file = element.containingFile as? CFile ?: return
+  val root = element.parents().find { it.parent === file } ?: return
+  val modificationCount = PsiModificationTracker.SERVICE.getInstance(file.project).modificationCount
+  if (root.getUserData(BATCH_RESOLVED_KEY) == modificationCount) return
+  // marked only when complete, a canceled batch is run again
+  resolveAll(root)
+  root.putUserData(BATCH_RESOLVED_KEY, modificationCount)
+}
+
 class CSymbolReference(o: CSymbol, r: TextRange = o.lastChild.textRange.shiftRight(-o.textRange.startOffset)) :
     PsiPolyVariantReferenceBase<CSymbol>(o, r), PsiQualifiedReference {
 
@@ -395,13 +555,36 @@ class CSymbolReference(o: CSymbol, r: TextRange = o.lastChild.textRange.shiftRig
     if (!processParentForms(langKind, refText, element, service, state, processor)) return false
     if (!containingFile.processDeclarations(processor, state, element, element)) return false
 
-    if (!processNamespace(containingFile.namespace, langKind, state, processor, containingFile, element)) return false
+    if (!processOwnNamespace(langKind, refText, state, processor, containingFile)) return false
     if (!processSpecialForms(langKind, refText, element, service, state, processor)) return false
     if (!isCljs) findClass(refText, service)?.let { if (!processor.execute(it, state)) return false }
     else if (refText == "Object") return processor.execute(service.getDefinition(refText, "", JS_OBJ), state)
     return true
   }
 
+  /** other files of the namespace, shared by the same names during [resolveAll] */
+  private fun processOwnNamespace(dialect: Dialect, refText: String?, state: ResolveState,
+                                  processor: PsiScopeProcessor, containingFile: CFileImpl): Boolean {
+    val batch = BATCH_RESOLVE.get()
+    if (batch == null || refText == null || state !== ResolveState.initial() || element.parent is CAccess) {
+      return processNamespace(containingFile.namespace, dialect, state, processor, containingFile, element)
+    }
+    val offers = batch.getOrPut(Triple(containingFile, dialect, refText)) {
+      ArrayList<Pair<PsiElement, ResolveState>>().also { list ->
+        processNamespace(containingFile.namespace, dialect, state, object : PsiScopeProcessor by processor {
+          override fun execute(element: PsiElement, state: ResolveState): Boolean {
+            list.add(element to state)
+            return true
+          }
+        }, containingFile, element)
+      }
+    }
+    for ((e, s) in offers) {
+      if (!processor.execute(e, s)) return false
+    }
+    return true
+  }
+
   private fun processNamespacePartBeforeSlash(dialect: Dialect, refText: String?, service: ClojureDefinitionService, state: ResolveState, processor: PsiScopeProcessor): Boolean {
     val containingFile = element.containingFile.originalFile as CFileImpl
     val isCljs = dialect == Dialect.CLJS
@@ -741,23 +924,34 @@ fun processSpecialForms(dialect: Dialect, refText: String?, place: PsiElement, s
 fun processBindings(element: CList, mode: String, state: ResolveState, processor: PsiScopeProcessor, place: PsiElement): Boolean {
   val bindings = findBindingsVec(element, mode) ?: return true
   if (!processor.execute(bindings, state)) return false
-  val roots = when (mode) {
-    "fn" -> JBIterable.of(bindings)
-    "let" -> bindings.childForms.filter(EachNth(2)).run {
-      place.contexts().find { it.context == bindings }?.let { o ->
-        if (contains(o)) takeWhile { it != o }.append(o as CForm)
-        else o.prevForm!!.let { o0 -> takeWhile { it != o0 } }
-      } ?: this
+  val table = (bindings.containingFile as? CFileImpl)?.bindingTable(bindings, mode) ?: BindingTable(bindings, mode)
+  val count = if (mode != "let") table.roots.size
+  else place.contexts().find { it.context == bindings }?.let { o ->
+    val index = table.roots.indexOf(o)
+    if (index >= 0) index + 1 else table.roots.indexOf(o.prevForm).let { if (it < 0) table.roots.size else it }
+  } ?: table.roots.size
+  for (i in 0 until count) {
+    for (o in table.names[i]) {
+      if (!processor.execute(o, state)) return false
     }
+  }
+  return true
+}
+
+/**
+ * Destructured names of a binding vector grouped by binding forms,
+ * so that the visible `let` bindings are the first groups up to the place.
+ */
+internal class BindingTable(bindings: CVec, mode: String) {
+  val roots: List<CForm> = when (mode) {
+    "fn" -> listOf(bindings)
+    "let" -> bindings.childForms.filter(EachNth(2)).toList()
     "for" -> bindings.childForms.filter(EachNth(2)).transform {
       if (it is CKeyword && it.text == ":let") it.nextForm as? CVec else it
-    }.notNulls()
+    }.notNulls().toList()
     else -> throw AssertionError("processBindings(): unknown mode: $mode")
   }
-  DESTRUCTURING.withRoots(roots).forEach {
-    if (!processor.execute(it, state)) return false
-  }
-  return true
+  val names: List<List<CForm>> = roots.map { DESTRUCTURING.withRoot(it).traverse().toList() }
 }
 
 private fun isKeysDestructuringVec(e : PsiElement?) =
@@ -765,7 +959,7 @@ private fun isKeysDestructuringVec(e : PsiElement?) =
 
 fun CFile.placeLanguage(place: PsiElement): Dialect =
     if (language == ClojureScriptLanguage) Dialect.CLJS
-    else {
+    else (this as? CFileImpl)?.dialectAt(place) ?: run {
       place.contexts().filter { it is CForm && it.prevForm is CKeyword &&
           it.context.run { role == Role.RCOND || role == Role.RCOND_S }
       }.first()?.let { e ->
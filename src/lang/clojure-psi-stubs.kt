@@ -22,8 +22,8 @@ import com.intellij.psi.PsiElement
 import com.intellij.psi.stubs.*
 import com.intellij.util.containers.JBIterable
 import com.intellij.util.containers.TreeTraversal
+import com.intellij.util.containers.WeakInterner
 import com.intellij.util.indexing.FileContent
-import com.intellij.util.text.nullize
 import org.intellij.clojure.ClojureConstants
 import org.intellij.clojure.lang.ClojureFileType
 import org.intellij.clojure.psi.*
@@ -32,12 +32,11 @@ import org.intellij.clojure.util.cljTraverser
 import org.intellij.clojure.util.filter
 import org.intellij.clojure.util.jbIt
 import org.intellij.clojure.util.role
-import kotlin.reflect.jvm.internal.impl.utils.SmartList
 
 /**
  * @author gregsh
  */
-val VERSION: Int = 7
+val VERSION: Int = 8
 
 class ClojureStubBuilder : BinaryFileStubBuilder {
   override fun getStubVersion() = VERSION
@@ -61,21 +60,39 @@ class ClojureStubBuilder : BinaryFileStubBuilder {
 abstract class CStub(parent: CStub?) : ObjectStubBase<CStub>(parent) {
   init {
     @Suppress("LeakingThis")
-    parent?.children?.add(this)
+    parent?.addChild(this)
   }
 
-  private val children = SmartList<CStub>()
+  /** allocated on the first child, prototype, meta and import stubs never have any */
+  private var children: MutableList<CStub>? = null
 
-  override fun getChildrenStubs() = children
+  private fun addChild(child: CStub) {
+    (children ?: ArrayList<CStub>(2).also { children = it }).add(child)
+  }
+
+  override fun getChildrenStubs(): List<CStub> = children ?: emptyList()
 }
 
 class CFileStub(val namespace: String) : CStub(null) {
 
   private val childMap = linkedMapOf<SymKey, CListStub>()
+  private val nameMap = HashMap<String, MutableList<CListStub>>()
+  private val typeMap = HashMap<String, MutableList<CListStub>>()
+
+  fun registerListStub(child: CListStub) {
+    childMap[child.key] = child
+    nameMap.getOrPut(child.key.name) { ArrayList(1) }.add(child)
+    typeMap.getOrPut(child.key.type) { ArrayList() }.add(child)
+  }
 
-  fun registerListStub(child: CListStub) { childMap[child.key] = child }
   fun findChildStub(key: SymKey) = childMap[key]
 
+  /** defs and methods with the short [name] in the file order */
+  fun findChildStubs(name: String): List<CListStub> = nameMap[name] ?: emptyList()
+
+  /** defs and methods of the [type] in the file order, e.g. "defn" or "method" */
+  fun findChildStubsByType(type: String): List<CListStub> = typeMap[type] ?: emptyList()
+
   override fun getStubType() = SERIALIZER as ObjectStubSerializer<*, Stub>
 
   companion object {
@@ -88,7 +105,7 @@ class CFileStub(val namespace: String) : CStub(null) {
       }
 
       override fun deserialize(dataStream: StubInputStream, parentStub: CStub?): CFileStub {
-        return CFileStub(dataStream.readName()?.string ?: ClojureConstants.NS_USER)
+        return CFileStub(dataStream.readInterned() ?: ClojureConstants.NS_USER)
       }
     }
   }
@@ -115,11 +132,11 @@ class CListStub(val key: SymKey,
       override fun indexStub(stub: CListStub, sink: IndexSink) = Unit
 
       override fun serialize(stub: CListStub, dataStream: StubOutputStream) {
-        dataStream.writeKey(stub.key)
+        dataStream.writeKey(stub.key, defaultNamespace(stub.parentStub))
       }
 
       override fun deserialize(dataStream: StubInputStream, parentStub: CStub?): CListStub {
-        return CListStub(dataStream.readKey(), parentStub)
+        return CListStub(dataStream.readKey(intern(defaultNamespace(parentStub))), parentStub)
       }
     }
   }
@@ -136,17 +153,17 @@ class CPrototypeStub(val args: List<Arg>, val typeHint: String?, parent: CStub?)
       override fun indexStub(stub: CPrototypeStub, sink: IndexSink) = Unit
 
       override fun serialize(stub: CPrototypeStub, dataStream: StubOutputStream) {
-        val argText = stub.args.map { it.name.escBar() + "|" + (it.typeHint?.escBar() ?: "") }
-        dataStream.writeName(argText.joinToString("|"))
+        dataStream.writeVarInt(stub.args.size)
+        stub.args.forEach { dataStream.writeName(it.name); dataStream.writeName(it.typeHint) }
         dataStream.writeName(stub.typeHint)
       }
 
       override fun deserialize(dataStream: StubInputStream, parentStub: CStub?): CPrototypeStub {
-        return CPrototypeStub(
-            dataStream.readName()?.string?.split("|").jbIt().split(2, true).map {
-              Arg(it[0]!!.unescBar(), it[1].nullize()?.unescBar()) }.toList(),
-            dataStream.readName()?.string,
-            parentStub)
+        val size = dataStream.readVarInt()
+        val args = if (size == 0) emptyList() else ArrayList<Arg>(size).apply {
+          for (i in 1..size) add(Arg(dataStream.readName()?.string ?: "", dataStream.readInterned()))
+        }
+        return CPrototypeStub(args, dataStream.readInterned(), parentStub)
       }
     }
   }
@@ -178,7 +195,7 @@ internal class CImportStub(val import: Import, val dialect: Dialect, parent: CSt
 
       override fun serialize(stub: CImportStub, dataStream: StubOutputStream) {
         val import = stub.import
-        dataStream.writeName(stub.dialect.name)
+        dataStream.writeByte(stub.dialect.ordinal)
         dataStream.writeName(import.nsType)
         dataStream.writeName(import.namespace)
         dataStream.writeName(import.alias)
@@ -190,10 +207,10 @@ internal class CImportStub(val import: Import, val dialect: Dialect, parent: CSt
       }
 
       override fun deserialize(dataStream: StubInputStream, parentStub: CStub?): CImportStub {
-        val langKind = Dialect.valueOf(dataStream.readName()!!.string)
+        val langKind = Dialect.values()[dataStream.readByte().toInt()]
         return CImportStub(Import(
-            dataStream.readName()!!.string,
-            dataStream.readName()!!.string,
+            dataStream.readInterned()!!,
+            dataStream.readInterned()!!,
             dataStream.readName()!!.string,
             null,
             dataStream.readSet(),
@@ -206,12 +223,33 @@ internal class CImportStub(val import: Import, val dialect: Dialect, parent: CSt
 }
 
 
-private fun StubOutputStream.writeKey(key: SymKey) = with(key) {
-  writeName(name); writeName(namespace); writeName(type)
+/**
+ * Names are written via the per-file name table of the stub tree.
+ * The namespace is omitted if it is the [defaultNamespace] of the parent stub.
+ */
+private fun StubOutputStream.writeKey(key: SymKey, defaultNs: String) = with(key) {
+  writeName(type); writeName(name); writeName(if (namespace == defaultNs) null else namespace)
+}
+
+private fun StubInputStream.readKey(defaultNs: String): SymKey {
+  val type = readInterned() ?: ""
+  val name = readName()?.string ?: ""
+  return SymKey(name, readInterned() ?: defaultNs, type)
 }
 
-private fun StubInputStream.readKey(): SymKey =
-    SymKey(readName()?.string ?: "", readName()?.string ?: "", readName()?.string ?: "")
+/** namespaces, def types and type hints repeat across all the stub trees of a project */
+private val INTERNER = WeakInterner<String>()
+
+private fun intern(s: String) = INTERNER.intern(s)
+
+private fun StubInputStream.readInterned(): String? = readName()?.string?.let(::intern)
+
+/** the file namespace for top-level defs and the protocol or record name for methods */
+private fun defaultNamespace(parentStub: CStub?) = when (parentStub) {
+  is CListStub -> parentStub.key.qualifiedName
+  is CFileStub -> parentStub.namespace
+  else -> ""
+}
 
 private val BUILDING_STUBS: ThreadLocal<Boolean> = object : ThreadLocal<Boolean>() {
   override fun initialValue() = false
@@ -250,7 +288,7 @@ private fun buildStubTreeImpl(file: CFile): CFileStub {
 
 private fun buildDefStub(e: CComposite, parentStub: CStub): CListStub {
   val def = e.def!!
-  val key = SymKey(def)
+  val key = SymKey(def.name, intern(def.namespace), intern(def.type))
   val stub = CListStub(key, parentStub)
   if (def is Def) {
     if (def.meta.isNotEmpty()) {
@@ -276,12 +314,12 @@ private fun buildNSStub(e: CComposite, parentStub: CStub) {
 }
 
 fun StubOutputStream.writeMap(o: Map<String, String>) {
-  writeInt(o.size)
+  writeVarInt(o.size)
   o.keys.stream().sorted().forEach { writeName(it); writeName(o[it]) }
 }
 
 fun StubInputStream.readMap(): Map<String, String> {
-  val size = readInt()
+  val size = readVarInt()
   if (size == 0) return emptyMap()
   val o = HashMap<String, String>()
   for (i in 1..size) {
@@ -291,19 +329,16 @@ fun StubInputStream.readMap(): Map<String, String> {
 }
 
 fun StubOutputStream.writeSet(o: Set<String>) {
-  writeInt(o.size)
+  writeVarInt(o.size)
   o.stream().sorted().forEach { writeName(it) }
 }
 
 fun StubInputStream.readSet(): Set<String> {
-  val size = readInt()
+  val size = readVarInt()
   if (size == 0) return emptySet()
   val map = HashSet<String>()
   for (i in 1..size) {
     map.add(readName()?.string ?: "")
   }
   return map
-}
-
-private fun String.escBar() = replace("|", "&bar;")
-private fun String.unescBar() = replace("&bar;", "|")
\ No newline at end of file
+}
\ No newline at end of file
@@ -22,6 +22,7 @@ import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.components.ServiceManager
 import com.intellij.openapi.project.DumbService
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectRootManager
 import com.intellij.openapi.util.Key
 import com.intellij.openapi.util.Ref
 import com.intellij.openapi.vfs.VirtualFile
@@ -35,6 +36,8 @@ import com.intellij.psi.impl.PomTargetPsiElementImpl
 import com.intellij.psi.search.GlobalSearchScope
 import com.intellij.psi.search.LocalSearchScope
 import com.intellij.psi.search.SearchScope
+import com.intellij.psi.util.CachedValueProvider
+import com.intellij.psi.util.CachedValuesManager
 import com.intellij.psi.util.PsiModificationTracker
 import com.intellij.psi.util.PsiUtilCore
 import com.intellij.util.containers.ConcurrentFactoryMap
@@ -47,6 +50,8 @@ import org.intellij.clojure.lang.ClojureFileType
 import org.intellij.clojure.psi.*
 import org.intellij.clojure.psi.stubs.CStub
 import org.intellij.clojure.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
 import javax.swing.Icon
 import kotlin.reflect.KClass
 
@@ -81,6 +86,14 @@ class ClojureDefinitionService(val project: Project) {
 
   val java = JavaHelper.getJavaHelper(project)
 
+  /** imported names resolved per import context, shared by all the files, dropped on any PSI or roots change */
+  internal val importResolveCache: ConcurrentMap<ImportResolveKey, List<Pair<PsiElement, ResolveState>>>
+    get() = CachedValuesManager.getManager(project).getCachedValue(project) {
+      CachedValueProvider.Result.create(ConcurrentHashMap<ImportResolveKey, List<Pair<PsiElement, ResolveState>>>(),
+          PsiModificationTracker.MODIFICATION_COUNT, ProjectRootManager.getInstance(project),
+          DumbService.getInstance(project).modificationTracker)
+    }
+
   private val map: Map<SymKey, PsiElement> = createPomMap()
   private val PsiElement.map: Map<SymKey, PsiElement>
     get() = getUserData(POM_MAP_KEY).let f@ {
@@ -270,6 +283,7 @@ internal class YTarget(project: Project,
 
 private fun wrapWithNavigationElement(project: Project, key: SymKey): PsiElement? {
   val fileRef = Ref.create<VirtualFile>()
+  var offset = -1
   val scope = ClojureDefinitionService.getClojureSearchScope(project)
   val index = FileBasedIndex.getInstance()
   val processor: (VirtualFile, Unit) -> Boolean = { file, _ -> fileRef.set(file); false }
@@ -277,20 +291,23 @@ private fun wrapWithNavigationElement(project: Project, key: SymKey): PsiElement
   when (adjusted.type) {
     "ns" -> index.processValues(NS_INDEX, adjusted.name, null, processor, scope)
     "keyword" -> index.processValues(KEYWORD_FQN_INDEX, adjusted.qualifiedName, null, processor, scope)
-    else -> index.processValues(DEF_FQN_INDEX, adjusted.qualifiedName, null, processor, scope)
+    else -> index.processValues(DEF_INFO_INDEX, adjusted.qualifiedName, null, { file, info ->
+      fileRef.set(file); offset = info.offset; false
+    }, scope)
   }
-  return wrapWithNavigationElement(project, key, fileRef.get())
+  return wrapWithNavigationElement(project, key, fileRef.get(), offset)
 }
 
-internal fun wrapWithNavigationElement(project: Project, key: SymKey, file: VirtualFile?): NavigatablePsiElement {
+internal fun wrapWithNavigationElement(project: Project, key: SymKey, file: VirtualFile?, offset: Int = -1): NavigatablePsiElement {
   val adjusted = key.adjustKeyForNavigation()
   fun <C : CForm> locate(k: SymKey, clazz: KClass<C>): (CFile) -> Navigatable? = { f ->
-    val form = f.cljTraverser().traverse().filter(clazz).find {
-      when (k.type) {
-        "keyword" -> it is CKeyword && it.run { name == k.name && namespace == k.namespace }
-        else -> it is CList && it.def?.run { name == k.name && namespace == k.namespace } ?: false
-      }
+    fun matches(o: CForm) = when (k.type) {
+      "keyword" -> o is CKeyword && o.run { name == k.name && namespace == k.namespace }
+      else -> o is CList && o.def?.run { name == k.name && namespace == k.namespace } ?: false
     }
+    // the indexed offset points to the def name, it is stale if the file is changed since
+    val form = (if (offset < 0) null else f.findElementAt(offset).parentForms.filter(clazz).first()?.takeIf { matches(it) })
+        ?: f.cljTraverser().traverse().filter(clazz).find { matches(it) }
     when {
       k == key -> form
       key.type == "field" -> {
@@ -330,7 +347,9 @@ internal class XTarget(project: Project,
 
   fun resolveForm(): PsiElement? = psiFile?.let { if (it is CFile) resolver(it) as? PsiElement else it }
 
-  fun resolveStub(): CStub? = (psiFile as? CFileImpl)?.fileStubForced?.findChildStub(key)
+  fun resolveStub(): CStub? = (psiFile as? CFileImpl)?.fileStubForced?.let { stub ->
+    stub.findChildStub(key) ?: stub.findChildStubs(key.name).find { it.key.namespace == key.namespace }
+  }
 
   fun resolve(): PsiElement? =
     // need to specify exact def-type, so plain getDefinition(key) won't work
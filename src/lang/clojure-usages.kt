@@ -22,7 +22,7 @@ import com.intellij.codeInsight.navigation.GotoTargetRendererProvider
 import com.intellij.find.findUsages.PsiElement2UsageTargetAdapter
 import com.intellij.ide.util.DefaultPsiElementCellRenderer
 import com.intellij.lang.findUsages.FindUsagesProvider
-import com.intellij.navigation.ChooseByNameContributor
+import com.intellij.navigation.ChooseByNameContributorEx
 import com.intellij.navigation.GotoClassContributor
 import com.intellij.navigation.ItemPresentation
 import com.intellij.navigation.NavigationItem
@@ -45,10 +45,13 @@ import com.intellij.usageView.UsageViewShortNameLocation
 import com.intellij.usageView.UsageViewTypeLocation
 import com.intellij.usages.UsageTarget
 import com.intellij.usages.UsageTargetProvider
+import com.intellij.util.CommonProcessors
 import com.intellij.util.Processor
 import com.intellij.util.QueryExecutor
 import com.intellij.util.containers.JBIterable
 import com.intellij.util.indexing.FileBasedIndex
+import com.intellij.util.indexing.FindSymbolParameters
+import com.intellij.util.indexing.IdFilter
 import com.intellij.util.io.URLUtil
 import org.intellij.clojure.ClojureConstants
 import org.intellij.clojure.ClojureConstants.CLJS_CORE_PATH
@@ -109,30 +112,58 @@ private fun getTypeTextImpl(o: PsiElement): String? = when (o) {
   else -> null
 }
 
-class ClojureGotoSymbolContributor : ChooseByNameContributor, GotoClassContributor {
+class ClojureGotoSymbolContributor : ChooseByNameContributorEx, GotoClassContributor {
 
-  private val indices = arrayOf(DEF_FQN_INDEX to "def", NS_INDEX to "ns", KEYWORD_FQN_INDEX to "keyword")
+  private val indices = arrayOf(DEF_INFO_INDEX, NS_INDEX, KEYWORD_FQN_INDEX)
 
-  override fun getItemsByName(name: String, pattern: String?, project: Project, includeNonProjectItems: Boolean): Array<NavigatablePsiElement> {
-      val scope =
-          if (!includeNonProjectItems) GlobalSearchScope.projectScope(project)
-          else ClojureDefinitionService.getClojureSearchScope(project)
-    val idx = name.indexOf('/')
+  override fun processNames(processor: Processor<in String>, scope: GlobalSearchScope, filter: IdFilter?) {
+    val index = FileBasedIndex.getInstance()
+    for (id in indices) {
+      if (!index.processAllKeys(id, processor, scope, filter)) return
+    }
+  }
+
+  override fun processElementsWithName(name: String, processor: Processor<in NavigationItem>, parameters: FindSymbolParameters) {
+    val project = parameters.project
+    val scope = parameters.searchScope
+    val filter = parameters.idFilter
+    val index = FileBasedIndex.getInstance()
+    // `clojure.core//` is the division, `ns/Type/method` is a method of a type
+    val idx = if (name.endsWith("//")) name.length - 2 else name.lastIndexOf('/').takeIf { it < name.length - 1 } ?: -1
     val namespace = if (idx > 0) name.substring(0, idx) else ""
-    val shortName = name.substring(idx + 1)
+    val shortName = if (idx > 0) name.substring(idx + 1) else name
 
-    return indices.map { it.second to FileBasedIndex.getInstance().getContainingFiles(it.first, name, scope) }.
-        flatMap { (type, files) ->
-          (if (type == "keyword") files.jbIt().take(1) else files.jbIt()).map { file ->
-            wrapWithNavigationElement(project, SymKey(shortName, namespace, type), file)
-          }
-        }.toTypedArray()
+    if (!index.processValues(DEF_INFO_INDEX, name, null, { file, info ->
+          val offset = if (info.type == "method") -1 else info.offset
+          processor.process(wrapWithNavigationElement(project, SymKey(shortName, namespace, info.type), file, offset))
+        }, scope, filter)) return
+    if (!index.processValues(NS_INDEX, name, null, { file, _ ->
+          processor.process(wrapWithNavigationElement(project, SymKey(shortName, namespace, "ns"), file))
+        }, scope, filter)) return
+    // the first file is enough for a keyword
+    index.processValues(KEYWORD_FQN_INDEX, name, null, { file, _ ->
+      processor.process(wrapWithNavigationElement(project, SymKey(shortName, namespace, "keyword"), file))
+      false
+    }, scope, filter)
+  }
+
+  override fun getItemsByName(name: String, pattern: String?, project: Project, includeNonProjectItems: Boolean): Array<NavigationItem> {
+    val result = ArrayList<NavigationItem>()
+    val parameters = FindSymbolParameters(pattern ?: name, name, searchScope(project, includeNonProjectItems), null)
+    processElementsWithName(name, CommonProcessors.CollectProcessor(result), parameters)
+    return result.toTypedArray()
   }
 
   override fun getNames(project: Project, includeNonProjectItems: Boolean): Array<String> {
-    return indices.flatMap { FileBasedIndex.getInstance().getAllKeys(it.first, project).jbIt() }.toTypedArray()
+    val result = LinkedHashSet<String>()
+    processNames(CommonProcessors.CollectProcessor(result), searchScope(project, includeNonProjectItems), null)
+    return result.toTypedArray()
   }
 
+  private fun searchScope(project: Project, includeNonProjectItems: Boolean) =
+      if (!includeNonProjectItems) GlobalSearchScope.projectScope(project)
+      else ClojureDefinitionService.getClojureSearchScope(project)
+
   override fun getQualifiedName(item: NavigationItem?): String? {
     return (item as? PsiElement).asCTarget?.key?.qualifiedName
   }
@@ -0,0 +1,5 @@
+(ns ns-imports-refer-clojure
+  (:refer-clojure :only [map inc]))
+
+(map inc [1 2])
+(<warning descr="unable to resolve 'filter'">filter</warning> nil [1 2])
@@ -0,0 +1,5 @@
+(ns ns-imports-rename
+  (:require [clojure.set :refer [union] :rename {union set-union}]))
+
+(set-union #{1} #{2})
+(<warning descr="unable to resolve 'union'">union</warning> #{1} #{2})
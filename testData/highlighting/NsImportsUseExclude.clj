@@ -0,0 +1,5 @@
+(ns ns-imports-use-exclude
+  (:use [clojure.set :exclude [intersection]]))
+
+(union #{1} #{2})
+(<warning descr="unable to resolve 'intersection'">intersection</warning> #{1} #{1 2})
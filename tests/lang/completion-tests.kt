@@ -61,6 +61,10 @@ class ClojureCompletionTest : BasePlatformTestCase() {
   fun testKeywordNsUser6a() = "::$NS_KEY".let { doTest("$NS_ALIAS $it :some<caret>", it, "$NS_ALIAS $it $it") }
   fun testKeywordNsUser8a() = "::$NS_KEY".let { doTest("$NS_ALIAS $it :sk<caret>", it, "$NS_ALIAS $it $it") }
   fun testKeywordNsUser9() = "::$NS_KEY".let { doNegTest("$NS_ALIAS $it nk<caret>", it) }
+  fun testKeywordMiddleMatch() = ":user/first-name".let {
+    myFixture.addFileToProject("b.clj", "{$it 1}")
+    doTest(":na<caret>", it, it)
+  }
 
   fun testNsAlias1() = "namespace".let { doPosTest("$NS_ALIAS (<caret>", it) }
   fun testNsAlias2() = "namespace".let { doPosTest("$NS_ALIAS (<caret>/", it) }
@@ -76,6 +80,8 @@ class ClojureCompletionTest : BasePlatformTestCase() {
   fun testFqn2a() = "str/blank?".let { doTest("$STR_ALIAS (bla<caret>)", it, "$STR_ALIAS ($it)", 2) }
   fun testFqn3a() = "str/blank?".let { doTest("$STR_ALIAS (clostribla<caret>)", it, "$STR_ALIAS ($it)", 2) }
   fun testFqn4a() = doTest("$STR_ALIAS (s<caret>tr/blank?)", "str", "$STR_ALIAS (str/blank?)")
+  fun testFqnMiddleMatch() = "clojure.string/trim-newline".let { doTest("(newl<caret>)", it, "($it)", 2) }
+  fun testFqnHumpMatch() = "clojure.string/trim-newline".let { doTest("(tnewl<caret>)", it, "($it)", 2) }
 
   fun testInsideImport1() = doTest("(require '[<caret> :refer [blank?]])", "clojure.string")
   fun testInsideImport2() = doNegTest("(require '[<caret> :refer [blank?]])", "def")
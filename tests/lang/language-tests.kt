@@ -5,6 +5,7 @@ import com.intellij.lang.LanguageASTFactory
 import com.intellij.lang.LanguageBraceMatching
 import com.intellij.lang.annotation.HighlightSeverity
 import com.intellij.lexer.Lexer
+import com.intellij.openapi.command.WriteCommandAction
 import com.intellij.openapi.extensions.ExtensionPointName
 import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.roots.ModuleRootModificationUtil
@@ -17,7 +18,9 @@ import com.intellij.openapi.vfs.impl.VirtualFileManagerImpl
 import com.intellij.openapi.vfs.impl.jar.CoreJarFileSystem
 import com.intellij.openapi.vfs.local.CoreLocalFileSystem
 import com.intellij.openapi.vfs.pointers.VirtualFilePointerManager
+import com.intellij.psi.PsiDocumentManager
 import com.intellij.psi.PsiErrorElement
+import com.intellij.psi.PsiFileFactory
 import com.intellij.psi.SyntaxTraverser
 import com.intellij.psi.TokenType
 import com.intellij.psi.stubs.StubUpdatingIndex
@@ -29,6 +32,14 @@ import com.intellij.testFramework.fixtures.BasePlatformTestCase
 import com.intellij.util.indexing.FileBasedIndex
 import org.intellij.clojure.inspections.ClojureResolveInspection
 import org.intellij.clojure.parser.*
+import org.intellij.clojure.psi.CElement
+import org.intellij.clojure.psi.CFile
+import org.intellij.clojure.psi.Dialect
+import org.intellij.clojure.psi.IDef
+import org.intellij.clojure.psi.impl.ClojureLexerIndexer
+import org.intellij.clojure.psi.impl.DialectRanges
+import org.intellij.clojure.psi.impl.indexData
+import org.intellij.clojure.util.cljTraverser
 import org.intellij.clojure.util.elementType
 import org.intellij.clojure.util.jbIt
 import java.io.File
@@ -158,6 +169,95 @@ abstract class ClojureParsingTestCase(o: ClojureParserDefinitionBase) : ParsingT
   }
 }
 
+class ClojureLexerIndexingTest : BasePlatformTestCase() {
+  fun testNsDefsKeywords() = doTest("""
+    (ns foo.bar (:require [clojure.string :as str] (clojure [set :as set])))
+    (defn ^:private f [x] {::str/k 1 ::set/k 2 ::k 3 :plain 4 :q/k 5})
+    (defn g ([] 0) ([x & xs] x))
+    (def ^{:tag String} v #:x{:a 1 :b/c 2})
+    (defprotocol P (m [this]))
+    (defrecord R [a] P (m [this] a))
+    (s/def ::spec int?)
+    (in-ns 'foo.baz)
+    """)
+
+  private fun doTest(text: String) {
+    val file = myFixture.configureByText("a.clj", text) as CFile
+    val expected = indexData(file)
+    val actual = ClojureLexerIndexer(ClojureLanguage).index(text)
+    assertEquals(expected.namespaces.sorted(), actual.namespaces.sorted())
+    assertEquals(expected.defs.sorted(), actual.defs.sorted())
+    assertEquals(expected.defFqns.sorted(), actual.defFqns.sorted())
+    assertEquals(expected.keywords.sorted(), actual.keywords.sorted())
+    assertEquals(expected.keywordFqns.sorted(), actual.keywordFqns.sorted())
+    assertEquals(expected.defInfos, actual.defInfos)
+  }
+}
+
+class DialectRangesTest : UsefulTestCase() {
+  fun testNested() {
+    val ranges = DialectRanges(listOf(
+        Triple(0, 100, Dialect.CLJ), Triple(10, 50, Dialect.CLJS),
+        Triple(20, 30, Dialect.CLJ), Triple(60, 70, Dialect.CLJS)))
+    assertEquals(Dialect.CLJ, ranges.dialectAt(5))
+    assertEquals(Dialect.CLJS, ranges.dialectAt(10))
+    assertEquals(Dialect.CLJ, ranges.dialectAt(25))
+    assertEquals(Dialect.CLJS, ranges.dialectAt(35))
+    assertEquals(Dialect.CLJ, ranges.dialectAt(55))
+    assertEquals(Dialect.CLJS, ranges.dialectAt(65))
+    assertEquals(Dialect.CLJ, ranges.dialectAt(99))
+    assertNull(ranges.dialectAt(100))
+  }
+
+  fun testEqualStarts() {
+    val ranges = DialectRanges(listOf(Triple(5, 20, Dialect.CLJS), Triple(5, 40, Dialect.CLJ)))
+    assertNull(ranges.dialectAt(4))
+    assertEquals(Dialect.CLJS, ranges.dialectAt(5))
+    assertEquals(Dialect.CLJ, ranges.dialectAt(20))
+    assertNull(ranges.dialectAt(40))
+  }
+}
+
+class ClojureIncrementalRolesTest : BasePlatformTestCase() {
+  fun testEditFormByForm() {
+    val file = myFixture.configureByText("a.clj", """
+      (ns foo.bar (:require [clojure.string :as str]))
+      (defn let [x] x)
+      (defn f [a] (let [b a] (str/join b)))
+      (defn g [c] (inc c))
+      """.trimIndent()) as CFile
+    assertSameRoles(file)
+    edit(file, "(inc c)", "(dec c)")
+    edit(file, "(str/join b)", "(str/join [b a])")
+    edit(file, "(defn let ", "(defn lett ")
+    edit(file, ":as str]", ":as s]")
+  }
+
+  private fun edit(file: CFile, from: String, to: String) {
+    val document = myFixture.getDocument(file)
+    WriteCommandAction.runWriteCommandAction(project) {
+      val offset = document.text.indexOf(from)
+      document.replaceString(offset, offset + from.length, to)
+      PsiDocumentManager.getInstance(project).commitDocument(document)
+    }
+    assertSameRoles(file)
+  }
+
+  private fun assertSameRoles(file: CFile) {
+    val fresh = PsiFileFactory.getInstance(project).createFileFromText("b.clj", ClojureLanguage, file.text) as CFile
+    assertEquals(roles(fresh), roles(file))
+    assertEquals(defs(fresh), defs(file))
+  }
+
+  private fun roles(file: CFile) = file.cljTraverser().traverse().filter(CElement::class.java).map {
+    "${it.textRange.startOffset} ${it.text}: ${it.role} ${it.flags} ${it.def.render()} ${it.resolvedNs}"
+  }.toList()
+
+  private fun defs(file: CFile) = file.defs().map { "${it.textRange.startOffset} ${it.def.render()}" }.toList()
+
+  private fun IDef?.render() = this?.run { "$type $namespace/$name" }
+}
+
 class ClojureHighlightingTest : BasePlatformTestCase() {
   override fun getTestDataPath() = "$TEST_DATA_PATH/highlighting"
   override fun setUp() {
@@ -167,6 +267,13 @@ class ClojureHighlightingTest : BasePlatformTestCase() {
   }
 
   fun testClojureFixes() = doTest("clj")
+  fun testNsImportsRename() = doTest("clj")
+  fun testNsImportsUseExclude() = doTest("clj")
+  fun testNsImportsReferClojure() = doTest("clj")
+  fun testNsImportsReferMacros() {
+    myFixture.addFileToProject("ns_imports/macros.cljc", "(ns ns-imports.macros) (defn f1 []) (defmacro m1 []) (defmacro m2 [])")
+    doTest("cljs")
+  }
 
   fun testClojureLang() = walkLibrary("Clojure")
   fun testClojureScript() = walkLibrary("ClojureScript")